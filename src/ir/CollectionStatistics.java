@@ -0,0 +1,68 @@
+package ir;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  The statistics of a whole sharded collection which the tf-idf ranking
+ *  of one shard needs to score its documents as the unsharded index would:
+ *  the number of documents of all the shards, and the document frequency
+ *  of the terms of a query summed over the shards. The coordinator gathers
+ *  them from the shards before the search (see ShardCoordinator).
+ */
+public class CollectionStatistics {
+
+    /** Number of documents of the collection. */
+    public int documents = 0;
+
+    /** Document frequency of each term of the query. */
+    public final HashMap<String,Integer> df = new HashMap<String,Integer>();
+
+    /** Adds the statistics of a shard. */
+    public void add(CollectionStatistics shard) {
+        this.documents += shard.documents;
+        for(Map.Entry<String,Integer> entry : shard.df.entrySet()) {
+            Integer df = this.df.get(entry.getKey());
+            this.df.put(entry.getKey(), (df != null ? df : 0) + entry.getValue());
+        }
+    }
+
+    /**
+     *  The idf of a term in the collection, or, for a term the statistics
+     *  do not know, the idf of the document frequency of the shard.
+     */
+    public double idf(String term, int localDf) {
+        Integer df = this.df.get(term);
+        int n = df != null ? df : localDf;
+        if(n <= 0) {
+            return 0;
+        }
+        return Math.log10((double)this.documents / (double)n);
+    }
+
+    /** The document frequencies as terms and numbers separated by spaces. */
+    public String encode() {
+        StringBuilder encoded = new StringBuilder();
+        for(Map.Entry<String,Integer> entry : this.df.entrySet()) {
+            if(encoded.length() > 0) {
+                encoded.append(' ');
+            }
+            encoded.append(entry.getKey()).append(' ').append(entry.getValue());
+        }
+        return encoded.toString();
+    }
+
+    /** The statistics of documents documents with the document frequencies of encode. */
+    public static CollectionStatistics parse(int documents, String encoded) {
+        CollectionStatistics statistics = new CollectionStatistics();
+        statistics.documents = documents;
+        String[] tokens = encoded.trim().isEmpty() ? new String[0] : encoded.trim().split(" +");
+        if(tokens.length % 2 != 0) {
+            throw new IllegalArgumentException("df must hold pairs of a term and a number");
+        }
+        for(int i=0;i<tokens.length;i+=2) {
+            statistics.df.put(tokens[i], Integer.parseInt(tokens[i + 1]));
+        }
+        return statistics;
+    }
+}
@@ -0,0 +1,253 @@
+package ir;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+/**
+ *  The last consistent state of the build of a scalable index, in a file
+ *  of the index directory which is only ever replaced as a whole: written
+ *  under another name, synced, and moved over the former one.
+ *
+ *  While the index is built, it lists the live segments, each with its
+ *  level, size and checksum, the number of the next block, and how many
+ *  bytes of the journal of the indexed documents are committed. The files
+ *  it names are immutable: they are written and synced before the commit
+ *  which refers to them, and only removed after the commit which forgets
+ *  them, so a build which dies is resumed from its last commit.
+ *
+ *  The files of the index itself are written with NEW_SUFFIX and
+ *  installed under their names by recover, after a commit in state
+ *  INSTALLING has recorded their lengths and checksums. An installation
+ *  which was interrupted is finished when the index is opened again.
+ *
+ *  The file ends with the CRC32 of what precedes it.
+ */
+public class CommitPoint {
+
+    /** The commit file name, in the directory of the persistent index. */
+    public static final String FNAME = "commit";
+
+    /** Suffix of the files of the index before they are installed. */
+    public static final String NEW_SUFFIX = ".new";
+
+    /** "CMIT" */
+    static final int MAGIC = 0x434d4954;
+
+    /** States of a build. */
+    public static final int BUILDING = 0;
+    public static final int INSTALLING = 1;
+    public static final int COMPLETE = 2;
+
+    /** The files of an index, which are installed together. */
+    static final String[] INDEX_FILES = {
+        PersistentHashedIndex.DICTIONARY_FNAME, PersistentHashedIndex.DATA_FNAME,
+        PersistentHashedIndex.TERMS_FNAME, PersistentHashedIndex.DOCINFO_FNAME
+    };
+
+    /** A segment of the build. */
+    public static class Segment {
+        public final String name;
+        public final int level;
+        public final long size;
+        public final long checksum;
+
+        public Segment(String name, int level, long size, long checksum) {
+            this.name = name;
+            this.level = level;
+            this.size = size;
+            this.checksum = checksum;
+        }
+    }
+
+    public int state = BUILDING;
+
+    /** Number of the next block written. */
+    public int nextBlock = 0;
+
+    /** Committed length of the journal, and the CRC32 of these bytes. */
+    public long journalLength = 0;
+    public long journalChecksum = 0;
+
+    /** The live segments, by name. */
+    public final LinkedHashMap<String,Segment> segments = new LinkedHashMap<String,Segment>();
+
+    /** Lengths and checksums of INDEX_FILES, when INSTALLING or COMPLETE. */
+    public final long[] fileLengths = new long[INDEX_FILES.length];
+    public final long[] fileChecksums = new long[INDEX_FILES.length];
+
+    /** Reads the commit of a directory, or returns null if there is none. */
+    public static CommitPoint read(File dir) throws IOException {
+        File file = new File(dir, FNAME);
+        if(!file.exists()) {
+            return null;
+        }
+        byte[] data = Files.readAllBytes(file.toPath());
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, Math.max(data.length - 8, 0));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if(data.length < 12 || in.readInt() != MAGIC
+           || ByteBuffer.wrap(data, data.length - 8, 8).getLong() != crc.getValue()) {
+            throw new IOException(file + " is damaged");
+        }
+        CommitPoint commit = new CommitPoint();
+        commit.state = in.readInt();
+        commit.nextBlock = in.readInt();
+        commit.journalLength = in.readLong();
+        commit.journalChecksum = in.readLong();
+        int n = in.readInt();
+        for(int i=0;i<n;++i) {
+            Segment segment = new Segment(in.readUTF(), in.readInt(), in.readLong(), in.readLong());
+            commit.segments.put(segment.name, segment);
+        }
+        for(int i=0;i<INDEX_FILES.length;++i) {
+            commit.fileLengths[i] = in.readLong();
+            commit.fileChecksums[i] = in.readLong();
+        }
+        return commit;
+    }
+
+    /** Replaces the commit of a directory by this one. */
+    public synchronized void write(File dir) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(this.state);
+        out.writeInt(this.nextBlock);
+        out.writeLong(this.journalLength);
+        out.writeLong(this.journalChecksum);
+        out.writeInt(this.segments.size());
+        for(Segment segment : this.segments.values()) {
+            out.writeUTF(segment.name);
+            out.writeInt(segment.level);
+            out.writeLong(segment.size);
+            out.writeLong(segment.checksum);
+        }
+        for(int i=0;i<INDEX_FILES.length;++i) {
+            out.writeLong(this.fileLengths[i]);
+            out.writeLong(this.fileChecksums[i]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+
+        File tmp = new File(dir, FNAME + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            bytes.writeTo(file);
+            file.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(dir, FNAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Removes the commit of a directory, whose index is written without commits. */
+    public static void delete(File dir) {
+        new File(dir, FNAME).delete();
+    }
+
+    /**
+     *  Finishes the installation of the index of a directory if it was
+     *  interrupted, and warns if the files of a complete index are not
+     *  those of its commit. Called before the files of the index are opened.
+     */
+    public static void recover(File dir) {
+        try {
+            CommitPoint commit = read(dir);
+            if(commit == null) {
+                return;
+            }
+            if(commit.state == INSTALLING) {
+                commit.install(dir);
+            } else if(commit.state == COMPLETE) {
+                for(int i=0;i<INDEX_FILES.length;++i) {
+                    if(new File(dir, INDEX_FILES[i]).length() != commit.fileLengths[i]) {
+                        System.err.println("Warning: " + INDEX_FILES[i] + " does not match the last commit of the index, it must be built again.");
+                    }
+                }
+            }
+        } catch(IOException e) {
+            System.err.println("Could not recover the index: " + e.getMessage());
+        }
+    }
+
+    /**
+     *  Moves the files written with NEW_SUFFIX, which must match the
+     *  checksums of this INSTALLING commit, over the files of the index,
+     *  commits the index as COMPLETE and removes the segments and the
+     *  journal. The files of the index must not be open.
+     */
+    void install(File dir) throws IOException {
+        for(int i=0;i<INDEX_FILES.length;++i) {
+            File file = new File(dir, INDEX_FILES[i] + NEW_SUFFIX);
+            if(!file.exists()) {
+                // Moved before the installation was interrupted.
+                continue;
+            }
+            if(file.length() != this.fileLengths[i] || checksum(file) != this.fileChecksums[i]) {
+                throw new IOException(file + " does not match its checksum");
+            }
+            Files.move(file.toPath(), new File(dir, INDEX_FILES[i]).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        this.state = COMPLETE;
+        Segment[] segments = this.segments.values().toArray(new Segment[0]);
+        this.segments.clear();
+        this.journalLength = 0;
+        this.journalChecksum = 0;
+        this.write(dir);
+        for(Segment segment : segments) {
+            new File(dir, PersistentScalableHashedIndex.RUN_FNAME + segment.name).delete();
+        }
+        new File(dir, PersistentScalableHashedIndex.JOURNAL_FNAME).delete();
+    }
+
+    /** Records the lengths and checksums of the files of the index written with NEW_SUFFIX. */
+    void recordNewFiles(File dir) throws IOException {
+        for(int i=0;i<INDEX_FILES.length;++i) {
+            File file = new File(dir, INDEX_FILES[i] + NEW_SUFFIX);
+            sync(file);
+            this.fileLengths[i] = file.length();
+            this.fileChecksums[i] = checksum(file);
+        }
+    }
+
+    /** The CRC32 of the first length bytes of a file, or of all of them if length is negative. */
+    static long checksum(File file, long length, CRC32 crc) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), SortedRun.BUFFER_SIZE)) {
+            byte[] buffer = new byte[SortedRun.BUFFER_SIZE];
+            long left = length >= 0 ? length : Long.MAX_VALUE;
+            int n;
+            while(left > 0 && (n = in.read(buffer, 0, (int)Math.min(buffer.length, left))) > 0) {
+                crc.update(buffer, 0, n);
+                left -= n;
+            }
+            if(length >= 0 && left > 0) {
+                throw new IOException(file + " is shorter than committed");
+            }
+        }
+        return crc.getValue();
+    }
+
+    static long checksum(File file) throws IOException {
+        return checksum(file, -1, new CRC32());
+    }
+
+    /** Forces the content of a file to the disk. */
+    static void sync(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+}
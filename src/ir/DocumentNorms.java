@@ -0,0 +1,83 @@
+package ir;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  The collection statistics of tf-idf ranking, computed once when the
+ *  index is committed rather than on every query: the inverse length of
+ *  each document, in an array indexed by docID, and the idf of each
+ *  document frequency, so that scoring a posting is a multiply-add with
+ *  no boxed lookup and no logarithm.
+ *
+ *  A query reads the arrays of the last call to compute, which replaces
+ *  them instead of modifying them.
+ */
+public class DocumentNorms {
+
+    /** Number of documents of the collection. */
+    private volatile int documents = 0;
+
+    /** 1 / length of each document, 0 for a docID without a length. */
+    private volatile double[] inverseLengths = new double[0];
+
+    /** log10(N / df) for each document frequency df in [0, N]. */
+    private volatile double[] idfs = new double[1];
+
+    /** Computes the statistics of a collection of documents documents. */
+    public synchronized void compute(int documents, HashMap<Integer,Integer> docLengths) {
+        int maxDocID = -1;
+        for(Integer docID : docLengths.keySet()) {
+            maxDocID = Math.max(maxDocID, docID);
+        }
+        double[] inverseLengths = new double[maxDocID + 1];
+        for(Map.Entry<Integer,Integer> entry : docLengths.entrySet()) {
+            if(entry.getValue() > 0) {
+                inverseLengths[entry.getKey()] = 1.0 / entry.getValue();
+            }
+        }
+        this.set(documents, inverseLengths);
+    }
+
+    /** Computes the statistics of the documents of a document file. */
+    public synchronized void compute(DocumentStore store) {
+        double[] inverseLengths = new double[store.slots()];
+        for(int docID=0;docID<inverseLengths.length;++docID) {
+            int length = store.getLength(docID);
+            if(length > 0) {
+                inverseLengths[docID] = 1.0 / length;
+            }
+        }
+        this.set(store.size(), inverseLengths);
+    }
+
+    private void set(int documents, double[] inverseLengths) {
+        double[] idfs = new double[documents + 1];
+        for(int df=1;df<=documents;++df) {
+            idfs[df] = Math.log10((double)documents / (double)df);
+        }
+        this.inverseLengths = inverseLengths;
+        this.idfs = idfs;
+        this.documents = documents;
+    }
+
+    /** Number of documents of the collection. */
+    public int getDocuments() {
+        return this.documents;
+    }
+
+    /** 1 / length of each document, indexed by docID. Must not be modified. */
+    public double[] getInverseLengths() {
+        return this.inverseLengths;
+    }
+
+    /** The idf of a term found in df documents. */
+    public double idf(int df) {
+        double[] idfs = this.idfs;
+        if(df < idfs.length) {
+            return idfs[df];
+        }
+        // A term of a collection larger than the statistics.
+        return Math.log10((double)this.documents / (double)df);
+    }
+}
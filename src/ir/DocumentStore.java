@@ -0,0 +1,193 @@
+package ir;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ *  The names and lengths of the documents of a persistent index, in a
+ *  binary file which is mapped in memory rather than parsed, so that an
+ *  index is opened in a time which does not grow with its number of
+ *  documents. A name is only decoded when it is asked for.
+ *
+ *  The file holds, as big-endian ints, a magic number, the number of
+ *  docIDs n (the largest docID + 1), the number of documents and the
+ *  number of names in a block, then the length of each docID (-1 for a
+ *  docID without a document), the place of each block of names in the
+ *  heap, and the heap. The names of a block, in UTF-8, are front coded:
+ *  each one is the variable-byte number of bytes it shares with the
+ *  previous one, the variable-byte number of bytes which follow, and
+ *  these bytes. Since docIDs follow the walk of the directories, most of
+ *  a path is shared with the previous one.
+ */
+public class DocumentStore {
+
+    /** "DOCS" */
+    static final int MAGIC = 0x444f4353;
+
+    /** Number of names in a block, which is decoded from its first name. */
+    static final int BLOCK = 16;
+
+    private static final int HEADER = 16;
+
+    /** The mapped file, or null if no file is open. */
+    private volatile ByteBuffer buffer = null;
+
+    /**
+     *  Writes the documents of names and lengths to file. The file is
+     *  written under another name and then moved over the former one, which
+     *  stays intact for those who mapped it.
+     */
+    public static void write(File file, HashMap<Integer,String> names, HashMap<Integer,Integer> lengths) throws IOException {
+        int n = 0;
+        for(Integer docID : names.keySet()) {
+            n = Math.max(n, docID + 1);
+        }
+        int blocks = (n + BLOCK - 1) / BLOCK;
+        int[] offsets = new int[blocks];
+        ByteArrayOutputStream heap = new ByteArrayOutputStream();
+        byte[] header = new byte[10];
+        byte[] previous = new byte[0];
+        for(int docID=0;docID<n;++docID) {
+            String name = names.get(docID);
+            byte[] bytes = name != null ? name.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            int shared = 0;
+            if(docID % BLOCK == 0) {
+                offsets[docID / BLOCK] = heap.size();
+            } else {
+                int max = Math.min(bytes.length, previous.length);
+                while(shared < max && bytes[shared] == previous[shared]) {
+                    shared++;
+                }
+            }
+            int p = PostingsCodec.writeVByte(header, 0, shared);
+            p = PostingsCodec.writeVByte(header, p, bytes.length - shared);
+            heap.write(header, 0, p);
+            heap.write(bytes, shared, bytes.length - shared);
+            previous = bytes;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(n);
+            out.writeInt(names.size());
+            out.writeInt(BLOCK);
+            for(int docID=0;docID<n;++docID) {
+                Integer length = lengths.get(docID);
+                out.writeInt(names.containsKey(docID) ? (length != null ? length : 0) : -1);
+            }
+            for(int offset : offsets) {
+                out.writeInt(offset);
+            }
+            heap.writeTo(out);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Maps a file written by write, in place of the file open so far. */
+    public void open(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if(in.length() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is larger than 2GB");
+            }
+            ByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            if(buffer.limit() < HEADER || buffer.getInt(0) != MAGIC || buffer.getInt(12) != BLOCK) {
+                throw new IOException(file + " is not a document file of this version, the index must be built again");
+            }
+            this.buffer = buffer;
+        }
+    }
+
+    /** Forgets the file open, if any. */
+    public void close() {
+        this.buffer = null;
+    }
+
+    /** Whether a file is open. */
+    public boolean isOpen() {
+        return this.buffer != null;
+    }
+
+    /** Number of docIDs: the largest docID + 1, or 0 if no file is open. */
+    public int slots() {
+        ByteBuffer buffer = this.buffer;
+        return buffer != null ? buffer.getInt(4) : 0;
+    }
+
+    /** Number of documents, or 0 if no file is open. */
+    public int size() {
+        ByteBuffer buffer = this.buffer;
+        return buffer != null ? buffer.getInt(8) : 0;
+    }
+
+    /** The length of a document, or -1 if there is no such document. */
+    public int getLength(int docID) {
+        ByteBuffer buffer = this.buffer;
+        if(buffer == null || docID < 0 || docID >= buffer.getInt(4)) {
+            return -1;
+        }
+        return buffer.getInt(HEADER + 4 * docID);
+    }
+
+    /** The name of a document, or null if there is no such document. */
+    public String getName(int docID) {
+        ByteBuffer buffer = this.buffer;
+        if(buffer == null || docID < 0 || docID >= buffer.getInt(4) || buffer.getInt(HEADER + 4 * docID) < 0) {
+            return null;
+        }
+        int n = buffer.getInt(4);
+        int heap = HEADER + 4 * n + 4 * ((n + BLOCK - 1) / BLOCK);
+        int[] p = {heap + buffer.getInt(HEADER + 4 * n + 4 * (docID / BLOCK))};
+        byte[] name = new byte[64];
+        int length = 0;
+        for(int i=docID-docID%BLOCK;i<=docID;++i) {
+            int shared = readVByte(buffer, p);
+            int suffix = readVByte(buffer, p);
+            length = shared + suffix;
+            if(length > name.length) {
+                name = Arrays.copyOf(name, Math.max(length, 2 * name.length));
+            }
+            for(int j=0;j<suffix;++j) {
+                name[shared + j] = buffer.get(p[0]++);
+            }
+        }
+        return new String(name, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /** Puts the names and lengths of all the documents in names and lengths. */
+    public void readInto(HashMap<Integer,String> names, HashMap<Integer,Integer> lengths) {
+        int n = this.slots();
+        for(int docID=0;docID<n;++docID) {
+            int length = this.getLength(docID);
+            if(length >= 0) {
+                names.put(docID, this.getName(docID));
+                lengths.put(docID, length);
+            }
+        }
+    }
+
+    /** Reads a variable-byte number at p[0] of a buffer, and moves p[0] after it. */
+    private static int readVByte(ByteBuffer buffer, int[] p) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get(p[0]++);
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -8,7 +8,11 @@
 package ir;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
 *  This is the main class for the search engine.
@@ -32,8 +36,12 @@ public class Engine {
     /**  Directories that should be indexed. */
     ArrayList<String> dirNames = new ArrayList<String>();
 
-    /**  Lock to prevent simultaneous access to the index. */
-    Object indexLock = new Object();
+    /**
+    *  Lock of the index: searches share the read lock and run concurrently,
+    *  indexing holds the write lock, so a search sees the index either
+    *  before or after a whole indexing pass.
+    */
+    final ReadWriteLock indexLock = new ReentrantReadWriteLock();
 
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file = null;
@@ -47,6 +55,62 @@ public class Engine {
     /** For persistent indexes, we might not need to do any indexing. */
     boolean is_indexing = true;
 
+    /**
+    *  Whether only the files added, changed or deleted since the last
+    *  indexing pass are indexed, into a persistent index.
+    */
+    boolean incremental = false;
+
+    /** Whether an incremental pass compacts the index in any case. */
+    boolean compact = false;
+
+    /** Whether a persistent index that is not rebuilt is read through memory-mapped files. */
+    boolean memory_mapped = false;
+
+    /** Size in megabytes of the postings cache of a persistent index, 0 to read every list from disk. */
+    long cache_size = 64;
+
+    /** Number of threads indexing the documents. */
+    int indexing_threads = Runtime.getRuntime().availableProcessors();
+
+    /** Number of threads merging the blocks of the scalable index at once. */
+    int merge_threads = Math.max( Runtime.getRuntime().availableProcessors() / 2, 1 );
+
+    /** Memory in megabytes of a block of the scalable index, or 0 for a share of the largest heap. */
+    long block_memory = 0;
+
+    /**
+     *  Largest number of blocks, and of megabytes, waiting for a merge of the
+     *  scalable index before the indexing waits, or 0 for the default.
+     */
+    int merge_backlog = 0;
+    long merge_backlog_size = 0;
+
+    /** Number of threads extracting the text of PDF files. */
+    int pdf_threads = 2;
+
+    /** Time given to the extraction of the text of a PDF file, in seconds. */
+    int pdf_timeout = 60;
+
+    /** Port of the headless search server, or -1 to search through the GUI. */
+    int server_port = -1;
+
+    /** The search server of the headless mode, or null. */
+    SearchServer server;
+
+    /**
+    *  The shard of the collection this engine indexes, out of shard_count,
+    *  into the index of its working directory.
+    */
+    int shard = 0;
+    int shard_count = 1;
+
+    /**
+    *  The host:port addresses of the search servers of the shards this
+    *  engine searches instead of an index of its own, or null.
+    */
+    ArrayList<String> shard_addresses = null;
+
     KGramIndex indexKGram = new KGramIndex(2);
 
     SpellChecker speller;
@@ -60,11 +124,38 @@ public class Engine {
     */
     public Engine( String[] args ) {
         decodeArgs( args );
+        if ( (incremental || shard_count > 1) && !(index instanceof PersistentHashedIndex) ) {
+            index = new PersistentHashedIndex();
+        }
+        if ( shard_addresses != null ) {
+            // The coordinator of the shards has no index of its own.
+            is_indexing = false;
+        }
+        if ( incremental && index instanceof PersistentScalableHashedIndex ) {
+            System.err.println( "The scalable index cannot be updated incrementally, it is built again." );
+            incremental = false;
+        }
+        if ( index instanceof PersistentHashedIndex ) {
+            ((PersistentHashedIndex)index).setCacheSize( cache_size << 20 );
+        }
+        if ( index instanceof PersistentScalableHashedIndex ) {
+            ((PersistentScalableHashedIndex)index).setMergeThreads( merge_threads );
+            if ( block_memory > 0 ) {
+                ((PersistentScalableHashedIndex)index).setBlockBudget( block_memory << 20 );
+            }
+            ((PersistentScalableHashedIndex)index).setMaxMergeBacklog( merge_backlog, merge_backlog_size << 20 );
+        }
         indexer = new Indexer(index, patterns_file, indexKGram);
+        indexer.setThreads( indexing_threads );
+        indexer.setPDFExtraction( pdf_threads, pdf_timeout );
+        indexer.setPartition( shard, shard_count );
         searcher = new Searcher(index, indexKGram);
-        gui = new SearchGUI( this );
+        searcher.setShards( shard_addresses );
         speller = new SpellChecker(index, indexKGram);
-        gui.init();
+        if ( server_port < 0 ) {
+            gui = new SearchGUI( this );
+            gui.init();
+        }
         /*
         *   Calls the indexer to index the chosen directory structure.
         *   Access to the index is synchronized since we don't want to
@@ -72,19 +163,134 @@ public class Engine {
         *   corrupt the index).
         */
         if (is_indexing) {
-            synchronized ( indexLock ) {
-                gui.displayInfoText( "Indexing, please wait..." );
+            indexLock.writeLock().lock();
+            try {
+                displayInfoText( "Indexing, please wait..." );
                 long startTime = System.currentTimeMillis();
+                Manifest manifest = prepareManifest();
                 for ( int i=0; i<dirNames.size(); i++ ) {
                     File dokDir = new File( dirNames.get( i ));
                     indexer.processFiles( dokDir );
                 }
+                indexer.removeMissingDocuments();
                 long elapsedTime = System.currentTimeMillis() - startTime;
-                gui.displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
+                displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
                 index.cleanup();
+                if ( manifest != null ) {
+                    try {
+                        manifest.write( new File( PersistentHashedIndex.INDEXDIR, Manifest.FNAME ));
+                    }
+                    catch ( IOException e ) {
+                        System.err.println( "Could not write the manifest: " + e.getMessage() );
+                    }
+                }
+                // Sorts the terms now rather than on the first prefix query.
+                indexKGram.getSortedTerms();
+            }
+            finally {
+                indexLock.writeLock().unlock();
             }
         } else {
-            gui.displayInfoText( "Index is loaded from disk" );
+            if ( memory_mapped && index instanceof PersistentHashedIndex ) {
+                try {
+                    ((PersistentHashedIndex)index).mapFiles();
+                }
+                catch ( IOException e ) {
+                    System.err.println( "Could not map the index, reading it from disk: " + e.getMessage() );
+                }
+            }
+            if ( shard_addresses != null ) {
+                displayInfoText( "Searching " + shard_addresses.size() + " shards" );
+            }
+            else if ( index instanceof PersistentHashedIndex ) {
+                loadTerms( (PersistentHashedIndex)index );
+                indexKGram.getSortedTerms();
+            }
+            displayInfoText( "Index is loaded from disk" );
+        }
+        if ( server_port >= 0 ) {
+            try {
+                server = new SearchServer( this, server_port );
+                server.start();
+            }
+            catch ( IOException e ) {
+                System.err.println( "Could not start the search server: " + e.getMessage() );
+            }
+        }
+    }
+
+
+    /**
+    *   Gives the indexer the manifest of a persistent index: the one of the
+    *   last pass when indexing incrementally, whose terms are then added to
+    *   the k-gram index, or an empty one when the index is built again.
+    *   Returns null for an index kept in memory.
+    */
+    private Manifest prepareManifest() {
+        if ( !(index instanceof PersistentHashedIndex) ) {
+            return null;
+        }
+        PersistentHashedIndex persistent = (PersistentHashedIndex)index;
+        Manifest manifest = new Manifest();
+        if ( incremental ) {
+            try {
+                manifest = Manifest.read( new File( PersistentHashedIndex.INDEXDIR, Manifest.FNAME ));
+                persistent.loadDocInfo();
+            }
+            catch ( IOException e ) {
+                System.err.println( "Could not read the index, it is built again: " + e.getMessage() );
+                incremental = false;
+            }
+            incremental = incremental && loadTerms( persistent );
+        }
+        if ( incremental ) {
+            persistent.setIncremental( compact );
+        }
+        else {
+            persistent.reset();
+            manifest = new Manifest();
+            if ( persistent instanceof PersistentScalableHashedIndex ) {
+                // The documents of an interrupted build are not indexed again.
+                Manifest resumed = ((PersistentScalableHashedIndex)persistent).resume();
+                if ( resumed != null ) {
+                    manifest = resumed;
+                    loadTerms( persistent );
+                }
+            }
+        }
+        indexer.setManifest( manifest );
+        return manifest;
+    }
+
+
+    /**
+    *   Adds the terms of a persistent index read from disk to the k-gram
+    *   index, which the searches go through. Returns false if they could
+    *   not be read.
+    */
+    private boolean loadTerms( PersistentHashedIndex persistent ) {
+        try {
+            for ( String term : persistent.terms() ) {
+                indexKGram.insert( term );
+            }
+            return true;
+        }
+        catch ( IOException e ) {
+            System.err.println( "Could not read the terms of the index: " + e.getMessage() );
+            return false;
+        }
+    }
+
+
+    /**
+    *   Shows a message in the GUI, or prints it in the headless mode.
+    */
+    void displayInfoText( String text ) {
+        if ( gui != null ) {
+            gui.displayInfoText( text );
+        }
+        else {
+            System.out.println( text );
         }
     }
 
@@ -125,6 +331,88 @@ public class Engine {
                 i++;
                 is_indexing = false;
             }
+            else if ( "-incremental".equals( args[i] )) {
+                i++;
+                incremental = true;
+            }
+            else if ( "-compact".equals( args[i] )) {
+                i++;
+                incremental = true;
+                compact = true;
+            }
+            else if ( "-mmap".equals( args[i] )) {
+                i++;
+                memory_mapped = true;
+            }
+            else if ( "-cache".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    cache_size = Long.parseLong( args[i++] );
+                }
+            }
+            else if ( "-threads".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    indexing_threads = Integer.parseInt( args[i++] );
+                }
+            }
+            else if ( "-mergethreads".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    merge_threads = Integer.parseInt( args[i++] );
+                }
+            }
+            else if ( "-blockmemory".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    block_memory = Long.parseLong( args[i++] );
+                }
+            }
+            else if ( "-mergebacklog".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    merge_backlog = Integer.parseInt( args[i++] );
+                }
+            }
+            else if ( "-mergebacklogsize".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    merge_backlog_size = Long.parseLong( args[i++] );
+                }
+            }
+            else if ( "-pdfthreads".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    pdf_threads = Integer.parseInt( args[i++] );
+                }
+            }
+            else if ( "-pdftimeout".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    pdf_timeout = Integer.parseInt( args[i++] );
+                }
+            }
+            else if ( "-shard".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    // s/n: shard s of n, from 0
+                    String[] parts = args[i++].split( "/" );
+                    shard = Integer.parseInt( parts[0] );
+                    shard_count = Integer.parseInt( parts[1] );
+                }
+            }
+            else if ( "-shards".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    shard_addresses = new ArrayList<String>( Arrays.asList( args[i++].split( "," )));
+                }
+            }
+            else if ( "-server".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    server_port = Integer.parseInt( args[i++] );
+                }
+            }
             else {
                 System.err.println( "Unknown option: " + args[i] );
                 break;
@@ -11,6 +11,11 @@ package ir;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  *   Implements an inverted index as a Hashtable from words to PostingsLists.
@@ -30,10 +35,12 @@ public class HashedIndex implements Index {
      */
     public void insert( String token, int docID, int offset ) {
 	       if(token != null && docID >= 0 && offset >= 0) {
-               if(!index.containsKey(token)) {
-                   index.put(token, new PostingsList());
+               PostingsList list = index.get(token);
+               if(list == null) {
+                   list = new PostingsList();
+                   index.put(token, list);
                }
-               index.get(token).add(docID, 0, offset);
+               list.append(docID, offset);
            }
     }
 
@@ -49,6 +56,98 @@ public class HashedIndex implements Index {
            }
     }
 
+    /** The terms of the index with their postings. */
+    Set<Map.Entry<String,PostingsList>> entries() {
+        return index.entrySet();
+    }
+
+    /**
+     *  Moves the postings of shards, whose documents are not in this index
+     *  nor in another shard, into this index, on threads threads. The
+     *  shards are empty afterwards. Returns the new terms in the order of
+     *  their first occurrence.
+     */
+    public ArrayList<String> merge( List<HashedIndex> shards, int threads ) {
+        return mergeInto(index, shards, threads);
+    }
+
+    /**
+     *  Moves the postings of shards into the hashtable of an index. The
+     *  terms are split among the threads by their hash, and each thread
+     *  merges the lists of its terms in one pass (see PostingsList.merge),
+     *  while the hashtable is only read. Returns the new terms in the order
+     *  of their first occurrence.
+     */
+    static ArrayList<String> mergeInto( final HashMap<String,PostingsList> index, final List<HashedIndex> shards, int threads ) {
+        final int parts = Math.max(threads, 1);
+        final ArrayList<HashMap<String,PostingsList>> merged = new ArrayList<HashMap<String,PostingsList>>();
+        final ArrayList<HashMap<String,Long>> firsts = new ArrayList<HashMap<String,Long>>();
+        Thread[] workers = new Thread[parts];
+        for(int t=0;t<parts;++t) {
+            final HashMap<String,PostingsList> part = new HashMap<String,PostingsList>();
+            final HashMap<String,Long> partFirsts = new HashMap<String,Long>();
+            merged.add(part);
+            firsts.add(partFirsts);
+            final int p = t;
+            workers[t] = new Thread("merger-" + t) {
+                public void run() {
+                    HashMap<String,ArrayList<PostingsList>> lists = new HashMap<String,ArrayList<PostingsList>>();
+                    for(HashedIndex shard : shards) {
+                        for(Map.Entry<String,PostingsList> entry : shard.index.entrySet()) {
+                            if(Math.floorMod(entry.getKey().hashCode(), parts) == p) {
+                                ArrayList<PostingsList> termLists = lists.get(entry.getKey());
+                                if(termLists == null) {
+                                    termLists = new ArrayList<PostingsList>();
+                                    lists.put(entry.getKey(), termLists);
+                                }
+                                termLists.add(entry.getValue());
+                            }
+                        }
+                    }
+                    for(Map.Entry<String,ArrayList<PostingsList>> entry : lists.entrySet()) {
+                        ArrayList<PostingsList> termLists = entry.getValue();
+                        PostingsList list = index.get(entry.getKey());
+                        if(list != null) {
+                            termLists.add(list);
+                        }
+                        PostingsList mergedList = termLists.size() == 1 ? termLists.get(0) : PostingsList.merge(termLists);
+                        if(list == null) {
+                            partFirsts.put(entry.getKey(), ((long)mergedList.getDocID(0) << 32) | mergedList.getPosition(0, 0));
+                        }
+                        part.put(entry.getKey(), mergedList);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        try {
+            for(Thread worker : workers) {
+                worker.join();
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while merging the shards", e);
+        }
+        ArrayList<Map.Entry<String,Long>> terms = new ArrayList<Map.Entry<String,Long>>();
+        for(int t=0;t<parts;++t) {
+            index.putAll(merged.get(t));
+            terms.addAll(firsts.get(t).entrySet());
+        }
+        for(HashedIndex shard : shards) {
+            shard.index.clear();
+        }
+        Collections.sort(terms, new Comparator<Map.Entry<String,Long>>() {
+            public int compare(Map.Entry<String,Long> e1, Map.Entry<String,Long> e2) {
+                return Long.compare(e1.getValue(), e2.getValue());
+            }
+        });
+        ArrayList<String> newTerms = new ArrayList<String>(terms.size());
+        for(Map.Entry<String,Long> term : terms) {
+            newTerms.add(term.getKey());
+        }
+        return newTerms;
+    }
+
     public ArrayList<String> getTermFromDocument(Integer docID) {
             ArrayList<String> terms = new ArrayList<String>();
             for(String token : index.keySet()) {
@@ -60,8 +159,15 @@ public class HashedIndex implements Index {
     }
 
     /**
-     *  No need for cleanup in a HashedIndex.
+     *  Releases the spare capacity of the postings lists once indexing is
+     *  done, and stores the document norms and the score bounds of the
+     *  lists for ranked retrieval.
      */
     public void cleanup() {
+        norms.compute(docNames.size(), docLengths);
+        for(PostingsList list : index.values()) {
+            list.trimToSize();
+            list.getBlockBounds();
+        }
     }
 }
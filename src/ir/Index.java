@@ -9,6 +9,7 @@ package ir;
 
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Iterator;
 
 /**
@@ -23,14 +24,59 @@ public interface Index {
     /** Mapping from document identifier to document length. */
     public HashMap<Integer,Integer> docLengths = new HashMap<Integer,Integer>();
 
+    /**
+     *  The names and lengths of the documents of a persistent index opened
+     *  without being indexed, which then leaves docNames and docLengths
+     *  empty. They are read through docName, docLength and documentCount.
+     */
+    public DocumentStore documents = new DocumentStore();
+
+    /** The idfs and inverse document lengths of ranking, computed at commit. */
+    public DocumentNorms norms = new DocumentNorms();
+
+    /**
+     *  The docIDs of the documents deleted or replaced since the index was
+     *  last compacted, whose postings are still on disk and are masked when
+     *  they are read.
+     */
+    public BitSet deletedDocs = new BitSet();
+
     public HashMap<String, Integer> docIdPageRank = new HashMap<String, Integer>();
 
+    /** The name of a document, or null if there is no such document. */
+    public static String docName( int docID ) {
+        return docNames.isEmpty() ? documents.getName(docID) : docNames.get(docID);
+    }
+
+    /** The length of a document, or -1 if there is no such document. */
+    public static int docLength( int docID ) {
+        if ( docNames.isEmpty() ) {
+            return documents.getLength(docID);
+        }
+        Integer length = docLengths.get(docID);
+        return length != null ? length : -1;
+    }
+
+    /** Number of documents in the index. */
+    public static int documentCount() {
+        return docNames.isEmpty() ? documents.size() : docNames.size();
+    }
+
     /** Inserts a token into the index. */
     public void insert( String token, int docID, int offset );
 
     /** Returns the postings for a given term. */
     public PostingsList getPostings( String token );
 
+    /**
+     *  Returns postings for a given term which contain at least every posting
+     *  of a document in candidates. Indexes which can skip the parts of the
+     *  list that are of no use for an intersection override this.
+     */
+    public default PostingsList getPostings( String token, PostingsList candidates ) {
+        return getPostings(token);
+    }
+
     /** This method is called on exit. */
     public void cleanup();
 
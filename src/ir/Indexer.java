@@ -10,10 +10,9 @@ package ir;
 import java.io.*;
 import java.util.*;
 import java.nio.charset.*;
-import org.apache.pdfbox.cos.COSDocument;
-import org.apache.pdfbox.pdfparser.*;
-import org.apache.pdfbox.util.PDFTextStripper;
-import org.apache.pdfbox.pdmodel.PDDocument;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -29,6 +28,40 @@ public class Indexer {
     /** The next docID to be generated. */
     private int lastDocID = 0;
 
+    /** Number of threads indexing the documents. */
+    private int threads = 1;
+
+    /** Number of files waiting for a worker before the walk blocks. */
+    static final int QUEUE_SIZE = 256;
+
+    /** Number of threads extracting the text of PDF files. */
+    private int pdfThreads = 2;
+
+    /** Time given to the extraction of the text of a PDF file, in seconds. */
+    private int pdfTimeout = 60;
+
+    /** The PDF extraction stage, started with the first PDF file. */
+    private PDFExtractor pdfExtractor = null;
+
+    /** What killed a worker of processFilesInParallel, which stops the others, or null. */
+    private volatile Throwable workerFailure = null;
+
+    /**
+    *  The files indexed so far, to index only the files which changed since
+    *  a previous pass, or null if every file is indexed.
+    */
+    private Manifest manifest = null;
+
+    /** The paths of the files seen by the walks since setManifest. */
+    private HashSet<String> seen = new HashSet<String>();
+
+    /** The part of the collection indexed, out of parts, for a shard of a sharded index. */
+    private int part = 0;
+    private int parts = 1;
+
+    /** The path of the directory processFiles walks. */
+    private String root = "";
+
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file;
 
@@ -50,56 +83,161 @@ public class Indexer {
         return lastDocID++;
     }
 
+    /**
+    *  Indexes documents on this many threads, or in the calling thread if
+    *  it is 1 or if the index cannot take shards (see processFilesInParallel).
+    */
+    public void setThreads( int threads ) {
+        this.threads = Math.max( threads, 1 );
+    }
+
+    /**
+    *  Extracts the text of PDF files on this many threads, and gives up
+    *  the rest of a file after timeout seconds.
+    */
+    public void setPDFExtraction( int threads, int timeout ) {
+        this.pdfThreads = Math.max( threads, 1 );
+        this.pdfTimeout = timeout;
+    }
+
+    /**
+    *  Indexes only the files of part part of parts of the collection: those
+    *  whose path relative to the directory processed has a hash code equal
+    *  to part modulo parts. The shards of a collection are indexed with
+    *  the same directory and parts, each in a directory of its own, so they
+    *  hold every file once wherever the collection lies.
+    */
+    public void setPartition( int part, int parts ) {
+        this.part = part;
+        this.parts = Math.max( parts, 1 );
+    }
+
+    /**
+    *  Indexes only the files which are not in the manifest, or whose size or
+    *  modification time changed, and records the files indexed in it. A
+    *  changed file gets a new docID and its former document is deleted. The
+    *  new docIDs follow those of the documents already in the index.
+    */
+    public void setManifest( Manifest manifest ) {
+        this.manifest = manifest;
+        this.seen.clear();
+        int maxDocID = index.deletedDocs.length() - 1;
+        for ( Integer docID : index.docNames.keySet() ) {
+            maxDocID = Math.max( maxDocID, docID );
+        }
+        lastDocID = Math.max( lastDocID, maxDocID + 1 );
+    }
+
+    /**
+    *  Deletes the documents of the manifest whose file was not seen by the
+    *  walks since setManifest, once every directory of the collection has
+    *  been processed.
+    */
+    public void removeMissingDocuments() {
+        if ( manifest == null ) {
+            return;
+        }
+        int removed = 0;
+        for ( String path : manifest.paths() ) {
+            if ( !seen.contains( path )) {
+                deleteDocument( manifest.remove( path ).docID );
+                removed++;
+            }
+        }
+        if ( removed > 0 ) {
+            System.err.println( "Removed " + removed + " deleted files" );
+        }
+    }
+
+    /** Removes a document from the collection, and masks its postings. */
+    private void deleteDocument( int docID ) {
+        index.docNames.remove( docID );
+        index.docLengths.remove( docID );
+        index.deletedDocs.set( docID );
+    }
+
+    private synchronized PDFExtractor pdfExtractor() {
+        if ( pdfExtractor == null ) {
+            pdfExtractor = new PDFExtractor( pdfThreads, pdfTimeout * 1000L );
+        }
+        return pdfExtractor;
+    }
+
     /**
     *  Tokenizes and indexes the file @code{f}. If <code>f</code> is a directory,
     *  all its files and subdirectories are recursively processed.
     */
     public void processFiles( File f ) {
-        // do not try to index fs that cannot be read
-        if ( f.canRead() ) {
+        root = f.getPath();
+        if ( threads > 1 && (index instanceof HashedIndex
+                             || (index instanceof PersistentHashedIndex && !(index instanceof PersistentScalableHashedIndex))) ) {
+            processFilesInParallel( f );
+        }
+        else {
+            walk( f, null );
+        }
+        closePDFExtractor();
+    }
+
+    /** Stops the threads of the PDF extractor, which is made again for the next files. */
+    private synchronized void closePDFExtractor() {
+        if ( pdfExtractor != null ) {
+            pdfExtractor.shutdown();
+            pdfExtractor = null;
+        }
+    }
+
+    /**
+    *  Gives a docID to each file of the directory structure, in the order
+    *  of a recursive walk, and indexes it at once, or hands it to the
+    *  workers through queue if queue is not null.
+    */
+    private void walk( File f, BlockingQueue<Document> queue ) {
+        // do not try to index fs that cannot be read, nor go on once a worker died
+        if ( f.canRead() && workerFailure == null ) {
             if ( f.isDirectory() ) {
                 String[] fs = f.list();
                 // an IO error could occur
                 if ( fs != null ) {
                     for ( int i=0; i<fs.length; i++ ) {
-                        processFiles( new File( f, fs[i] ));
+                        walk( new File( f, fs[i] ), queue );
                     }
                 }
             } else {
+                String path = f.getPath();
+                if ( parts > 1 && Math.floorMod( path.substring( root.length() ).hashCode(), parts ) != part ) {
+                    // Indexed by another shard
+                    return;
+                }
+                if ( manifest != null ) {
+                    seen.add( path );
+                    Manifest.FileInfo info = manifest.get( path );
+                    if ( info != null ) {
+                        if ( info.matches( f )) {
+                            // Unchanged since it was indexed
+                            return;
+                        }
+                        deleteDocument( info.docID );
+                    }
+                }
                 // First register the document and get a docID
                 int docID = generateDocID();
                 if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
-                index.docNames.put( docID, f.getPath() );
-                try {
-                    //  Read the first few bytes of the file to see if it is
-                    // likely to be a PDF
-                    Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-                    char[] buf = new char[4];
-                    reader.read( buf, 0, 4 );
-                    reader.close();
-                    if ( buf[0] == '%' && buf[1]=='P' && buf[2]=='D' && buf[3]=='F' ) {
-                        // We assume this is a PDF file
-                        try {
-                            String contents = extractPDFContents( f );
-                            reader = new StringReader( contents );
-                        }
-                        catch ( IOException e ) {
-                            // Perhaps it wasn't a PDF file after all
-                            reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-                        }
-                    }
-                    else {
-                        // We hope this is ordinary text
-                        reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
+                index.docNames.put( docID, path );
+                if ( manifest != null ) {
+                    manifest.put( path, docID, f.length(), f.lastModified() );
+                }
+                if ( queue != null ) {
+                    try {
+                        handOver( queue, new Document( docID, f ));
                     }
-                    Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
-                    int offset = 0;
-                    while ( tok.hasMoreTokens() ) {
-                        String token = tok.nextToken();
-                        insertIntoIndex( docID, token, offset++ );
+                    catch ( InterruptedException e ) {
+                        Thread.currentThread().interrupt();
                     }
-                    index.docLengths.put( docID, offset );
-                    reader.close();
+                    return;
+                }
+                try {
+                    index.docLengths.put( docID, tokenize( f, docID, null, isPDF( f )));
                 }
                 catch ( IOException e ) {
                     System.err.println( "Warning: IOException during indexing." );
@@ -108,23 +246,212 @@ public class Indexer {
         }
     }
 
+    /**
+    *  Reads the first few bytes of the file to see if it is likely to be a
+    *  PDF.
+    */
+    private boolean isPDF( File f ) throws IOException {
+        Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
+        char[] buf = new char[4];
+        reader.read( buf, 0, 4 );
+        reader.close();
+        return buf[0] == '%' && buf[1]=='P' && buf[2]=='D' && buf[3]=='F';
+    }
+
+    /**
+    *  Tokenizes a file into shard, or into the index and the k-gram index
+    *  if shard is null, and returns its number of tokens. The text of a PDF
+    *  file is read page by page as the PDF stage extracts it.
+    */
+    private int tokenize( File f, int docID, HashedIndex shard, boolean pdf ) throws IOException {
+        Reader reader;
+        if ( pdf ) {
+            reader = pdfExtractor().extract( f );
+        }
+        else {
+            // We hope this is ordinary text
+            reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
+        }
+        int offset = 0;
+        try {
+            Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
+            while ( tok.hasMoreTokens() ) {
+                String token = tok.nextToken();
+                if ( shard != null ) {
+                    shard.insert( token, docID, offset++ );
+                }
+                else {
+                    insertIntoIndex( docID, token, offset++ );
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return offset;
+    }
+
 
     /* ----------------------------------------------- */
 
 
+    /** A file to index, with its docID. */
+    private static class Document {
+        final int docID;
+        final File file;
+
+        Document( int docID, File file ) {
+            this.docID = docID;
+            this.file = file;
+        }
+    }
+
+    /** Tells the workers that the walk is over. */
+    private static final Document END = new Document( -1, null );
+
+    /**
+    *  Puts document into queue, waiting for room as long as no worker died,
+    *  and returns false if one did: the queue may never be emptied then.
+    */
+    private boolean handOver( BlockingQueue<Document> queue, Document document ) throws InterruptedException {
+        while ( workerFailure == null ) {
+            if ( queue.offer( document, 100, TimeUnit.MILLISECONDS )) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+    *  Hands END over to each worker and waits for them. If a worker died,
+    *  the others are interrupted instead.
+    */
+    private void stopWorkers( Thread[] workers, BlockingQueue<Document> queue ) throws InterruptedException {
+        for ( int t=0; t<workers.length; t++ ) {
+            if ( !handOver( queue, END )) {
+                break;
+            }
+        }
+        if ( workerFailure != null ) {
+            for ( Thread worker : workers ) {
+                worker.interrupt();
+            }
+        }
+        for ( Thread worker : workers ) {
+            worker.join();
+        }
+    }
+
     /**
-    *  Extracts the textual contents from a PDF file as one long string.
+    *  Starts count workers tokenizing the files of queue into a new shard
+    *  each, until they take END. The workers hand the PDF files over to
+    *  pdfQueue if it is not null, otherwise they take PDF files only. A
+    *  file which fails is skipped with a warning. An Error kills the
+    *  worker: it is kept in workerFailure, and the walk and the other
+    *  workers stop.
     */
-    public String extractPDFContents( File f ) throws IOException {
-        FileInputStream fi = new FileInputStream( f );
-        PDFParser parser = new PDFParser( fi );
-        parser.parse();
-        fi.close();
-        COSDocument cd = parser.getDocument();
-        PDFTextStripper stripper = new PDFTextStripper();
-        String result = stripper.getText( new PDDocument( cd ));
-        cd.close();
-        return result;
+    private Thread[] startWorkers( String name, int count, final BlockingQueue<Document> queue, final BlockingQueue<Document> pdfQueue,
+                                   ArrayList<HashedIndex> shards, ArrayList<HashMap<Integer,Integer>> lengths ) {
+        Thread[] workers = new Thread[count];
+        for ( int t=0; t<count; t++ ) {
+            final HashedIndex shard = new HashedIndex();
+            final HashMap<Integer,Integer> shardLengths = new HashMap<Integer,Integer>();
+            shards.add( shard );
+            lengths.add( shardLengths );
+            workers[t] = new Thread( name + t ) {
+                public void run() {
+                    try {
+                        for ( Document document = queue.take(); document != END; document = queue.take() ) {
+                            try {
+                                boolean pdf = pdfQueue == null || isPDF( document.file );
+                                if ( pdf && pdfQueue != null ) {
+                                    if ( !handOver( pdfQueue, document )) {
+                                        return;
+                                    }
+                                }
+                                else {
+                                    shardLengths.put( document.docID, tokenize( document.file, document.docID, shard, pdf ));
+                                }
+                            }
+                            catch ( IOException e ) {
+                                System.err.println( "Warning: IOException during indexing." );
+                            }
+                            catch ( RuntimeException e ) {
+                                System.err.println( "Warning: could not index " + document.file + ": " + e );
+                            }
+                        }
+                    }
+                    catch ( InterruptedException e ) {
+                        Thread.currentThread().interrupt();
+                    }
+                    catch ( Throwable e ) {
+                        synchronized ( Indexer.this ) {
+                            if ( workerFailure == null ) {
+                                workerFailure = e;
+                            }
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        return workers;
+    }
+
+    /**
+    *  Indexes the files of a directory structure on several threads. This
+    *  thread walks the directories and gives the docIDs in the same order
+    *  as processFiles on one thread, so the index is the same. The files go
+    *  through a bounded queue to the workers, which tokenize them into a
+    *  shard each: a HashedIndex of their own, with no lock. The PDF files
+    *  are tokenized by other workers as their text is extracted. At the end, the
+    *  shards are merged into the index, which must be a HashedIndex or a
+    *  PersistentHashedIndex whose postings are still in memory, on threads
+    *  threads which each take a part of the terms, and their new terms are
+    *  added to the k-gram index in the order in which they first occur,
+    *  which also gives them the same term IDs.
+    */
+    public void processFilesInParallel( File f ) {
+        BlockingQueue<Document> queue = new ArrayBlockingQueue<Document>( QUEUE_SIZE );
+        BlockingQueue<Document> pdfQueue = new ArrayBlockingQueue<Document>( QUEUE_SIZE );
+        ArrayList<HashedIndex> shards = new ArrayList<HashedIndex>();
+        ArrayList<HashMap<Integer,Integer>> lengths = new ArrayList<HashMap<Integer,Integer>>();
+        // The PDF files go on to workers of their own, so that the text files
+        // do not wait for a slow extraction.
+        Thread[] workers = startWorkers( "indexer-", threads, queue, pdfQueue, shards, lengths );
+        Thread[] pdfWorkers = startWorkers( "pdf-indexer-", pdfThreads, pdfQueue, null, shards, lengths );
+        walk( f, queue );
+        try {
+            stopWorkers( workers, queue );
+            stopWorkers( pdfWorkers, pdfQueue );
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        Throwable failure = workerFailure;
+        if ( failure != null ) {
+            workerFailure = null;
+            if ( failure instanceof Error ) {
+                throw (Error)failure;
+            }
+            throw new IllegalStateException( "An indexing worker failed", failure );
+        }
+
+        for ( HashMap<Integer,Integer> shardLengths : lengths ) {
+            index.docLengths.putAll( shardLengths );
+        }
+        ArrayList<String> terms;
+        if ( index instanceof HashedIndex ) {
+            terms = ((HashedIndex)index).merge( shards, threads );
+        }
+        else {
+            terms = ((PersistentHashedIndex)index).merge( shards, threads );
+        }
+        shards.clear();
+        for ( String term : terms ) {
+            indexKGram.insert( term );
+        }
     }
 
 
@@ -0,0 +1,131 @@
+package ir;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ *  Measures the intersection of a rare and a common postings list with a
+ *  plain linear merge, a merge following the skip pointers and the adaptive
+ *  intersection of the Searcher, and the decoding of the common list from
+ *  its on-disk form, fully or only around the rare documents. Then
+ *  compares the pairwise merge in query order with the adaptive
+ *  intersection on queries of many terms.
+ *
+ *  Usage: java -cp classes ir.IntersectionBenchmark [size of the common list]
+ */
+public class IntersectionBenchmark {
+
+    static final int WARMUP = 100;
+    static final int RUNS = 100;
+
+    /** A list of n random distinct docIDs below maxDocID, one position each. */
+    static PostingsList randomList(Random random, int n, int maxDocID) {
+        PostingsList list = new PostingsList();
+        int docID = 0;
+        for(int i=0;i<n;++i) {
+            docID += 1 + random.nextInt(Math.max(1, 2 * (maxDocID - docID) / (n - i) - 1));
+            list.append(docID, random.nextInt(100));
+        }
+        return list;
+    }
+
+    /** A merge which follows the skip pointers of both lists. */
+    static PostingsList skipIntersect(PostingsList l1, PostingsList l2) {
+        PostingsList inter = new PostingsList();
+        int p1 = 0;
+        int p2 = 0;
+        while(p1 < l1.size() && p2 < l2.size()) {
+            if(l1.getDocID(p1) == l2.getDocID(p2)) {
+                inter.append(l1, p1);
+                p1++;
+                p2++;
+            } else if(l1.getDocID(p1) < l2.getDocID(p2)) {
+                p1 = l1.skipTo(p1, l2.getDocID(p2));
+            } else {
+                p2 = l2.skipTo(p2, l1.getDocID(p1));
+            }
+        }
+        return inter;
+    }
+
+    /** Pairwise linear merges in query order, for comparison. */
+    static PostingsList inOrderIntersect(ArrayList<PostingsList> lists) {
+        PostingsList inter = lists.get(0);
+        for(int i=1;i<lists.size();++i) {
+            inter = Searcher.linearIntersect(inter, lists.get(i));
+        }
+        return inter;
+    }
+
+    public static void main(String[] args) {
+        int common = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Random random = new Random(0);
+        PostingsList commonList = randomList(random, common, 4 * common);
+        byte[] commonData = PostingsCodec.encode(commonList);
+        System.out.println(String.format("%10s %12s %12s %12s %12s %12s", "rare", "linear(us)", "skips(us)", "adaptive(us)", "decode(us)", "partial(us)"));
+        for(int rare=10;rare<=common;rare*=10) {
+            PostingsList rareList = randomList(random, rare, 4 * common);
+            ArrayList<PostingsList> lists = new ArrayList<PostingsList>();
+            lists.add(rareList);
+            lists.add(commonList);
+            int n1 = Searcher.linearIntersect(rareList, commonList).size();
+            int n2 = skipIntersect(rareList, commonList).size();
+            int n3 = Searcher.intersect(lists).size();
+            if(n1 != n2 || n1 != n3) {
+                throw new IllegalStateException("Intersections differ: " + n1 + ", " + n2 + " and " + n3);
+            }
+            // Each method runs alone in its loop, the first runs only warm up the JIT.
+            double[] times = new double[5];
+            for(int method=0;method<times.length;++method) {
+                long start = 0;
+                for(int run=0;run<WARMUP+RUNS;++run) {
+                    if(run == WARMUP) {
+                        start = System.nanoTime();
+                    }
+                    switch(method) {
+                    case 0: Searcher.linearIntersect(rareList, commonList); break;
+                    case 1: skipIntersect(rareList, commonList); break;
+                    case 2: Searcher.intersect(lists); break;
+                    case 3: PostingsCodec.decode(commonData, 0, commonData.length); break;
+                    default: PostingsCodec.decode(ByteBuffer.wrap(commonData), rareList); break;
+                    }
+                }
+                times[method] = (System.nanoTime() - start) / 1000.0 / RUNS;
+            }
+            System.out.println(String.format("%10d %12.1f %12.1f %12.1f %12.1f %12.1f", rare,
+                                             times[0], times[1], times[2], times[3], times[4]));
+        }
+
+        System.out.println();
+        System.out.println(String.format("%10s %12s %12s", "terms", "in order(us)", "adaptive(us)"));
+        for(int terms=2;terms<=8;terms*=2) {
+            // From the most common term down to a rare one, the worst order for a pairwise merge.
+            ArrayList<PostingsList> lists = new ArrayList<PostingsList>();
+            for(int i=0;i<terms;++i) {
+                lists.add(randomList(random, common >> (3 * i * 4 / terms), 4 * common));
+            }
+            int n1 = inOrderIntersect(lists).size();
+            int n2 = Searcher.intersect(lists).size();
+            if(n1 != n2) {
+                throw new IllegalStateException("Intersections differ: " + n1 + " and " + n2);
+            }
+            double[] times = new double[2];
+            for(int method=0;method<times.length;++method) {
+                long start = 0;
+                for(int run=0;run<WARMUP+RUNS;++run) {
+                    if(run == WARMUP) {
+                        start = System.nanoTime();
+                    }
+                    if(method == 0) {
+                        inOrderIntersect(lists);
+                    } else {
+                        Searcher.intersect(lists);
+                    }
+                }
+                times[method] = (System.nanoTime() - start) / 1000.0 / RUNS;
+            }
+            System.out.println(String.format("%10d %12.1f %12.1f", terms, times[0], times[1]));
+        }
+    }
+}
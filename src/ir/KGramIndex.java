@@ -14,8 +14,8 @@ import java.util.regex.Pattern;
 
 public class KGramIndex {
 
-    /** Mapping from term ids to actual term strings */
-    HashMap<Integer,String> id2term = new HashMap<Integer,String>();
+    /** Mapping from term ids to actual term strings (the ids are 0, 1, 2...) */
+    ArrayList<String> id2term = new ArrayList<String>();
 
     /** Mapping from term strings to term ids */
     HashMap<String,Integer> term2id = new HashMap<String,Integer>();
@@ -29,6 +29,9 @@ public class KGramIndex {
     /** Number of symbols to form a K-gram */
     int K = 2;
 
+    /** The terms in sorted order, for prefix queries, or null until the first one */
+    SortedTermDictionary sortedTerms = null;
+
     public KGramIndex(int k) {
         K = k;
         if (k <= 0) {
@@ -80,6 +83,10 @@ public class KGramIndex {
             List<KGramPostingsEntry> intersection = null;
             List<KGramPostingsEntry> results = new ArrayList<KGramPostingsEntry>();
             int positionOfStar = token.indexOf("*");
+            if(positionOfStar == token.length()-1) {
+                // mone* : a range of the sorted terms, no k-gram nor regex needed
+                return this.prefixMatch(token.substring(0,positionOfStar));
+            }
             String reg = "";
             if(positionOfStar == 0) {
                 // *oney
@@ -89,14 +96,6 @@ public class KGramIndex {
                 after = this.search(token);
                 // System.out.println("Search : " + token);
                 // System.out.println("Regex : " + reg);
-            } else if(positionOfStar == token.length()-1) {
-                // mone*
-                token = token.substring(0,positionOfStar);
-                reg = "^" + token + ".*";
-                token = "^" + token;
-                // System.out.println("Search : " + token);
-                // System.out.println("Regex : " + reg);
-                before = this.search(token);
             } else {
                 // mo*ey
                 reg = "^" + token.substring(0,positionOfStar) + ".*" + token.substring(positionOfStar+1,token.length()) + "$";
@@ -156,7 +155,7 @@ public class KGramIndex {
         if(term2id.get(token) == null) {
             int tokenID = generateTermID();
             term2id.put(token, tokenID);
-            id2term.put(tokenID, token);
+            id2term.add(token);
             token = "^" + token + "$";
             KGramPostingsEntry entry = new KGramPostingsEntry(tokenID);
             for(int i=0;i<=token.length()-K;++i) {
@@ -169,6 +168,28 @@ public class KGramIndex {
         }
     }
 
+    /** Returns the terms starting with prefix. */
+    public List<KGramPostingsEntry> prefixMatch(String prefix) {
+        SortedTermDictionary terms = getSortedTerms();
+        int[] range = terms.prefixRange(prefix);
+        List<KGramPostingsEntry> results = new ArrayList<KGramPostingsEntry>(range[1] - range[0]);
+        for(int rank=range[0];rank<range[1];++rank) {
+            results.add(new KGramPostingsEntry(terms.getTermID(rank)));
+        }
+        return results;
+    }
+
+    /**
+     *  Returns the terms in sorted order, sorting them again if terms were
+     *  inserted since the last call.
+     */
+    public synchronized SortedTermDictionary getSortedTerms() {
+        if(sortedTerms == null || sortedTerms.size() != term2id.size()) {
+            sortedTerms = new SortedTermDictionary(term2id);
+        }
+        return sortedTerms;
+    }
+
     /** Get postings for the given k-gram */
     public List<KGramPostingsEntry> getPostings(String kgram) {
         return index.get(kgram);
@@ -181,7 +202,7 @@ public class KGramIndex {
 
     /** Get a term by the given id */
     public String getTermByID(Integer id) {
-        return id2term.get(id);
+        return id >= 0 && id < id2term.size() ? id2term.get(id) : null;
     }
 
     private static HashMap<String,String> decodeArgs( String[] args ) {
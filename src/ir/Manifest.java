@@ -0,0 +1,93 @@
+package ir;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  The files of an indexed collection, with the docID, size and last
+ *  modification time each had when it was indexed, so that an incremental
+ *  indexing pass only reads the files which were added or changed since.
+ *
+ *  It is stored as one line per file: docID;size;modified;path.
+ */
+public class Manifest {
+
+    /** The manifest file name, in the directory of the persistent index. */
+    public static final String FNAME = "manifest";
+
+    /** What the manifest knows of one file. */
+    public static class FileInfo {
+        public final int docID;
+        public final long size;
+        public final long modified;
+
+        FileInfo(int docID, long size, long modified) {
+            this.docID = docID;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        /** Whether the file is the one which was indexed, as far as its size and time tell. */
+        public boolean matches(File f) {
+            return this.size == f.length() && this.modified == f.lastModified();
+        }
+    }
+
+    private final HashMap<String,FileInfo> files = new HashMap<String,FileInfo>();
+
+    /** Reads a manifest, which is empty if the file does not exist. */
+    public static Manifest read(File file) throws IOException {
+        Manifest manifest = new Manifest();
+        if(!file.exists()) {
+            return manifest;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = in.readLine()) != null) {
+                // The path comes last, as it may hold the separator.
+                String[] data = line.split(";", 4);
+                if(data.length == 4) {
+                    manifest.put(data[3], Integer.parseInt(data[0]), Long.parseLong(data[1]), Long.parseLong(data[2]));
+                }
+            }
+        }
+        return manifest;
+    }
+
+    public void write(File file) throws IOException {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            for(Map.Entry<String,FileInfo> entry : this.files.entrySet()) {
+                FileInfo info = entry.getValue();
+                out.write(info.docID + ";" + info.size + ";" + info.modified + ";" + entry.getKey() + "\n");
+            }
+        }
+    }
+
+    /** What the manifest knows of a file, or null if it was not indexed. */
+    public FileInfo get(String path) {
+        return this.files.get(path);
+    }
+
+    public void put(String path, int docID, long size, long modified) {
+        this.files.put(path, new FileInfo(docID, size, modified));
+    }
+
+    public FileInfo remove(String path) {
+        return this.files.remove(path);
+    }
+
+    /** The paths of the files of the manifest, in a copy. */
+    public ArrayList<String> paths() {
+        return new ArrayList<String>(this.files.keySet());
+    }
+}
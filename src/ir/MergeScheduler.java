@@ -0,0 +1,296 @@
+package ir;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ *  Decides when the blocks written by an index are merged, and merges
+ *  them on a pool of a fixed number of threads.
+ *
+ *  The policy is tiered: a block written by the index is on level 0, and
+ *  merging factor segments of level l gives one segment of level l + 1.
+ *  Segments are only merged with segments of their own level, so of about
+ *  the same size, and each posting is written about log(blocks) / log(factor)
+ *  times instead of once per merge as when a large segment is merged with
+ *  each new block. A merge is started as soon as a level holds factor
+ *  segments and a thread is free, without polling.
+ *
+ *  The segments of the levels which hold factor segments or more while
+ *  every thread is busy are the backlog of the merges. When it holds more
+ *  than a number of segments or of bytes, add blocks the index until the
+ *  merges have caught up, so that the blocks do not pile up faster than
+ *  they are merged.
+ */
+public class MergeScheduler {
+
+    /** Merges segments into a new one. */
+    public interface Merger {
+        /**
+         *  Merges the segments of the given names into a new segment named
+         *  target, removes them, and returns the size of target in bytes.
+         */
+        long merge(List<String> segments, String target) throws IOException;
+    }
+
+    /** Number of segments of a level which are merged together. */
+    public static final int DEFAULT_FACTOR = 4;
+
+    /** Default largest backlog, in merges waiting for each thread. */
+    public static final int DEFAULT_BACKLOG_MERGES = 2;
+
+    private static class Segment {
+        final String name;
+        final int level;
+        final long size;
+
+        Segment(String name, int level, long size) {
+            this.name = name;
+            this.level = level;
+            this.size = size;
+        }
+    }
+
+    private final Merger merger;
+    private final int factor;
+    private final int threads;
+    private ExecutorService pool = null;
+
+    /** The segments which are not being merged. */
+    private final ArrayList<Segment> segments = new ArrayList<Segment>();
+
+    private int running = 0;
+    private int merges = 0;
+
+    /** Number in the name of the next segment merged, "_" followed by it. */
+    private int nextTarget = 0;
+    private IOException failure = null;
+
+    /** Bytes written by the index, and bytes written again by the merges. */
+    private long flushedBytes = 0;
+    private long mergedBytes = 0;
+
+    /** add blocks while the backlog holds more segments or bytes than these. */
+    private int maxBacklogSegments;
+    private long maxBacklogBytes = Long.MAX_VALUE;
+
+    /** Number of times add blocked, the time it blocked, and the largest backlog seen. */
+    private int stalls = 0;
+    private long stallNanos = 0;
+    private int peakBacklogSegments = 0;
+    private long peakBacklogBytes = 0;
+
+    public MergeScheduler(Merger merger, int factor, int threads) {
+        this.merger = merger;
+        this.factor = Math.max(factor, 2);
+        this.threads = Math.max(threads, 1);
+        this.maxBacklogSegments = DEFAULT_BACKLOG_MERGES * this.factor * this.threads;
+    }
+
+    /**
+     *  Blocks add while the backlog holds more than segments segments or
+     *  more than bytes bytes.
+     */
+    public synchronized void setMaxBacklog(int segments, long bytes) {
+        this.maxBacklogSegments = Math.max(segments, this.factor);
+        this.maxBacklogBytes = Math.max(bytes, 1);
+    }
+
+    /**
+     *  Adds a block written by the index, starts the merges it allows, and
+     *  waits while the backlog is too large.
+     */
+    public synchronized void add(String name, long size) {
+        this.flushedBytes += size;
+        this.segments.add(new Segment(name, 0, size));
+        this.schedule();
+        long start = System.nanoTime();
+        boolean stalled = false;
+        while(this.running > 0 && this.failure == null && this.overBacklog()) {
+            stalled = true;
+            try {
+                this.wait();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if(stalled) {
+            this.stalls++;
+            this.stallNanos += System.nanoTime() - start;
+        }
+    }
+
+    /** Whether the backlog is over its limits, and records its largest size. */
+    private boolean overBacklog() {
+        int count = 0;
+        long bytes = 0;
+        int[] counts = this.levelCounts();
+        for(Segment segment : this.segments) {
+            if(counts[Math.min(segment.level, counts.length - 1)] >= this.factor) {
+                count++;
+                bytes += segment.size;
+            }
+        }
+        this.peakBacklogSegments = Math.max(this.peakBacklogSegments, count);
+        this.peakBacklogBytes = Math.max(this.peakBacklogBytes, bytes);
+        return count > this.maxBacklogSegments || bytes > this.maxBacklogBytes;
+    }
+
+    /** Number of segments waiting for a merge, in the backlog or not. */
+    public synchronized int waitingSegments() {
+        return this.segments.size();
+    }
+
+    /** Number of merges running. */
+    public synchronized int runningMerges() {
+        return this.running;
+    }
+
+    /** Time add spent waiting for the merges, in nanoseconds. */
+    public synchronized long stallNanos() {
+        return this.stallNanos;
+    }
+
+    /**
+     *  Adds a segment of level level which a former build left, when the
+     *  build is resumed. The segments merged from now on get names which
+     *  the segments added are not using.
+     */
+    public synchronized void restore(String name, int level, long size) {
+        this.flushedBytes += size;
+        this.segments.add(new Segment(name, level, size));
+        if(name.startsWith("_")) {
+            try {
+                this.nextTarget = Math.max(this.nextTarget, Integer.parseInt(name.substring(1)) + 1);
+            } catch(NumberFormatException e) {
+            }
+        }
+        this.schedule();
+    }
+
+    /** Starts merges while a level holds factor segments and a thread is free. */
+    private void schedule() {
+        while(this.running < this.threads && this.failure == null) {
+            final List<Segment> group = this.takeLevel();
+            if(group == null) {
+                return;
+            }
+            if(this.pool == null) {
+                this.pool = Executors.newFixedThreadPool(this.threads);
+            }
+            this.running++;
+            this.merges++;
+            final String target = "_" + this.nextTarget++;
+            this.pool.execute(new Runnable() {
+                public void run() {
+                    mergeInBackground(group, target);
+                }
+            });
+        }
+    }
+
+    /** Removes and returns factor segments of the lowest level which has them, or null. */
+    private List<Segment> takeLevel() {
+        int[] counts = this.levelCounts();
+        for(int level=0;level<counts.length;++level) {
+            if(counts[level] >= this.factor) {
+                List<Segment> group = new ArrayList<Segment>();
+                for(int i=0;i<this.segments.size() && group.size()<this.factor;) {
+                    if(this.segments.get(i).level == level) {
+                        group.add(this.segments.remove(i));
+                    } else {
+                        i++;
+                    }
+                }
+                return group;
+            }
+        }
+        return null;
+    }
+
+    /** Number of segments of each level. */
+    private int[] levelCounts() {
+        int[] counts = new int[64];
+        for(Segment segment : this.segments) {
+            counts[Math.min(segment.level, counts.length - 1)]++;
+        }
+        return counts;
+    }
+
+    /**
+     *  Merges a group on a thread of the pool. Whatever the merge throws is
+     *  recorded for finish, and the merge always counts as over, so that
+     *  add and finish never wait for it forever.
+     */
+    private void mergeInBackground(List<Segment> group, String target) {
+        long size = 0;
+        IOException failure = null;
+        try {
+            size = this.merger.merge(names(group), target);
+        } catch(IOException e) {
+            failure = e;
+        } catch(Throwable e) {
+            failure = new IOException("Merge into " + target + " failed: " + e, e);
+        } finally {
+            synchronized(this) {
+                this.running--;
+                if(failure != null) {
+                    this.failure = failure;
+                } else {
+                    this.mergedBytes += size;
+                    int level = 0;
+                    for(Segment segment : group) {
+                        level = Math.max(level, segment.level + 1);
+                    }
+                    this.segments.add(new Segment(target, level, size));
+                    this.schedule();
+                }
+                this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     *  Waits for the merges started, merges the segments left into target
+     *  in the calling thread, even if there is only one, and stops the
+     *  threads. Returns false if no block was added.
+     */
+    public synchronized boolean finish(String target) throws IOException {
+        while(this.running > 0) {
+            try {
+                this.wait();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the merges");
+            }
+        }
+        if(this.pool != null) {
+            this.pool.shutdown();
+        }
+        if(this.failure != null) {
+            throw this.failure;
+        }
+        if(this.segments.isEmpty()) {
+            return false;
+        }
+        this.mergedBytes += this.merger.merge(names(this.segments), target);
+        this.merges++;
+        this.segments.clear();
+        System.out.println(String.format("%d merges, write amplification %.2f", this.merges,
+                                         this.flushedBytes > 0 ? (double)(this.flushedBytes + this.mergedBytes) / this.flushedBytes : 1.0));
+        System.out.println(String.format("Indexing stalled %d times for %d ms, largest merge backlog %d segments, %.1f MB",
+                                         this.stalls, this.stallNanos / 1000000, this.peakBacklogSegments, this.peakBacklogBytes / 1e6));
+        return true;
+    }
+
+    private static List<String> names(List<Segment> segments) {
+        List<String> names = new ArrayList<String>();
+        for(Segment segment : segments) {
+            names.add(segment.name);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,256 @@
+package ir;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.pdfparser.PDFParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.util.PDFTextStripper;
+
+/**
+ *  Extracts the text of PDF files on a pool of threads of its own.
+ *
+ *  The text of a file is read through a Reader while it is extracted, one
+ *  page at a time: at most PAGES_AHEAD pages wait for the reader, so a
+ *  large PDF never lies in memory as one String. A file whose text is not
+ *  read to the end within the timeout, counted from the start of its
+ *  extraction, is cut where the extraction is, and its extraction is
+ *  cancelled. As PDFBox may not stop when it is interrupted, the pool gets
+ *  one more thread for each cancelled extraction which is still running,
+ *  until it returns, so that files stuck in PDFBox do not hold up the
+ *  next ones.
+ */
+public class PDFExtractor {
+
+    /** Number of extracted pages which may wait for the reader. */
+    static final int PAGES_AHEAD = 4;
+
+    /** Marks the end of the pages of a file. */
+    private static final String END = new String("");
+
+    /** How often a reader checks whether the extraction it waits for has started, in milliseconds. */
+    static final long START_POLL_MILLIS = 100;
+
+    private final ThreadPoolExecutor pool;
+    private final int threads;
+    private final long timeoutMillis;
+
+    /** Number of cancelled extractions which are still running. */
+    private int abandoned = 0;
+
+    /** Extracts with threads threads, and gives each file timeoutMillis milliseconds. */
+    public PDFExtractor(int threads, long timeoutMillis) {
+        this.threads = Math.max(threads, 1);
+        this.timeoutMillis = timeoutMillis;
+        this.pool = (ThreadPoolExecutor)Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "pdf-" + this.count++);
+                // Extractions left behind after a timeout must not keep the JVM alive.
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /** Starts extracting the text of a PDF file, and returns a reader of the text. */
+    public Reader extract(final File file) {
+        final PageReader reader = new PageReader(file);
+        reader.task = this.pool.submit(new Runnable() {
+            public void run() {
+                if(!reader.start()) {
+                    return;
+                }
+                try {
+                    extract(file, reader);
+                } finally {
+                    reader.finish();
+                }
+            }
+        });
+        return reader;
+    }
+
+    /** Extracts the pages of a file into reader, then END. */
+    private void extract(File file, PageReader reader) {
+        try {
+            FileInputStream in = new FileInputStream(file);
+            COSDocument cd;
+            try {
+                PDFParser parser = new PDFParser(in);
+                parser.parse();
+                cd = parser.getDocument();
+            } finally {
+                in.close();
+            }
+            try {
+                PDDocument document = new PDDocument(cd);
+                PDFTextStripper stripper = new PDFTextStripper();
+                int pages = document.getNumberOfPages();
+                for(int page=1;page<=pages && !Thread.currentThread().isInterrupted();++page) {
+                    stripper.setStartPage(page);
+                    stripper.setEndPage(page);
+                    reader.pages.put(stripper.getText(document));
+                }
+            } finally {
+                cd.close();
+            }
+        } catch(IOException e) {
+            reader.error = e;
+        } catch(RuntimeException e) {
+            // PDFBox fails with runtime exceptions on some broken files.
+            reader.error = new IOException(e.toString(), e);
+        } catch(InterruptedException e) {
+            // Cancelled by the reader, which does not wait for the end any more.
+            return;
+        }
+        try {
+            reader.pages.put(END);
+        } catch(InterruptedException e) {
+        }
+    }
+
+    /** Adds a thread to the pool for an extraction which was cancelled but still runs, or removes it when the extraction returns. */
+    private synchronized void abandon(int delta) {
+        this.abandoned += delta;
+        int size = this.threads + this.abandoned;
+        // The largest size must stay at least the core size.
+        if(delta > 0) {
+            this.pool.setMaximumPoolSize(size);
+            this.pool.setCorePoolSize(size);
+        } else {
+            this.pool.setCorePoolSize(size);
+            this.pool.setMaximumPoolSize(size);
+        }
+    }
+
+    /** Stops the threads once the extractions started are over. */
+    public void shutdown() {
+        this.pool.shutdown();
+    }
+
+    /** Reads the pages of a file as they are extracted. */
+    private class PageReader extends Reader {
+        static final int QUEUED = 0;
+        static final int RUNNING = 1;
+        static final int FINISHED = 2;
+        static final int ABANDONED = 3;
+
+        final BlockingQueue<String> pages = new ArrayBlockingQueue<String>(PAGES_AHEAD);
+        final File file;
+        final AtomicInteger state = new AtomicInteger(QUEUED);
+        /** When the text must be read, 0 until the extraction starts. */
+        volatile long deadline = 0;
+        volatile Future<?> task;
+        volatile IOException error = null;
+
+        private String page = "";
+        private int position = 0;
+        private boolean done = false;
+
+        PageReader(File file) {
+            this.file = file;
+        }
+
+        /** Starts the timeout of the extraction, and returns false if the reader is closed already. */
+        boolean start() {
+            this.deadline = System.currentTimeMillis() + timeoutMillis;
+            return this.state.compareAndSet(QUEUED, RUNNING);
+        }
+
+        /** Ends the extraction, and gives back its thread if it was cancelled while running. */
+        void finish() {
+            if(!this.state.compareAndSet(RUNNING, FINISHED)) {
+                abandon(-1);
+            }
+        }
+
+        /**
+         *  Fills the buffer across the pages, and only reads less than length
+         *  characters at the end of the text: the Tokenizer takes a short
+         *  read for the end.
+         */
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            int n = 0;
+            while(n < length) {
+                if(this.position == this.page.length()) {
+                    if(this.done || !this.nextPage()) {
+                        break;
+                    }
+                    continue;
+                }
+                int count = Math.min(length - n, this.page.length() - this.position);
+                this.page.getChars(this.position, this.position + count, buffer, offset + n);
+                this.position += count;
+                n += count;
+            }
+            return n == 0 && length > 0 ? -1 : n;
+        }
+
+        /** Waits for the next page, and returns false at the end of the text. */
+        private boolean nextPage() {
+            String next = null;
+            try {
+                while(next == null) {
+                    long deadline = this.deadline;
+                    long now = System.currentTimeMillis();
+                    if(deadline == 0) {
+                        next = this.pages.poll(START_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    } else if(now < deadline) {
+                        next = this.pages.poll(deadline - now, TimeUnit.MILLISECONDS);
+                    } else {
+                        next = this.pages.poll();
+                        break;
+                    }
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if(next == null) {
+                System.err.println("Warning: timeout while extracting the text of " + this.file + ", only its first pages are indexed.");
+                this.close();
+                return false;
+            }
+            if(next == END) {
+                if(this.error != null) {
+                    System.err.println("Warning: could not extract the text of " + this.file + ": " + this.error.getMessage());
+                }
+                this.done = true;
+                return false;
+            }
+            this.page = next;
+            this.position = 0;
+            return true;
+        }
+
+        /**
+         *  Cancels the extraction if the text was not read to the end. An
+         *  extraction which still runs keeps its thread, so the pool gets
+         *  another one until it returns.
+         */
+        public void close() {
+            this.done = true;
+            if(this.state.compareAndSet(RUNNING, ABANDONED)) {
+                abandon(1);
+            } else {
+                this.state.compareAndSet(QUEUED, ABANDONED);
+            }
+            Future<?> task = this.task;
+            if(task != null) {
+                task.cancel(true);
+            }
+        }
+    }
+}
@@ -9,6 +9,9 @@ package ir;
 
 import java.io.*;
 import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.*;
 import static java.lang.Math.*;
 
@@ -40,6 +43,19 @@ public class PersistentHashedIndex implements Index {
     /** The doc info file name */
     public static final String DOCINFO_FNAME = "docInfo";
 
+    /** The tombstones file name */
+    public static final String TOMBSTONES_FNAME = "tombstones";
+
+    /** Suffix of the files of the delta segment. */
+    public static final String DELTA_SUFFIX = "_delta";
+
+    /**
+     *  An incremental pass compacts the index when the documents of the
+     *  delta segment, or the deleted documents, are more than this fraction
+     *  of the documents.
+     */
+    public static final double COMPACTION_RATIO = 0.2;
+
     /** The dictionary hash table on disk can fit this many entries. */
     public static long TABLESIZE = 611953L;  // 100,000th prime number
 
@@ -49,61 +65,96 @@ public class PersistentHashedIndex implements Index {
     /** The data (the PostingsLists) are stored in this file. */
     RandomAccessFile dataFile;
 
+    /** The terms of the dictionary are stored in this file. */
+    RandomAccessFile termsFile;
+
+    /** The dictionary file mapped in memory, or null if it is read with seeks. */
+    MappedByteBuffer dictionaryBuffer = null;
+
+    /** The terms file mapped in memory, or null if it is read with seeks. */
+    MappedByteBuffer termsBuffer = null;
+
+    /** The data file mapped in memory, or null if it is read with seeks. */
+    MappedByteBuffer dataBuffer = null;
+
     /** Pointer to the first free memory cell in the data file. */
     long free = 0L;
 
+    /** Pointer to the first free memory cell in the terms file. */
+    long termsFree = 0L;
+
+    /**
+     *  The segment holding the documents indexed incrementally since the
+     *  last compaction, or null if there is none. Its postings are merged
+     *  with those of this index when they are read.
+     */
+    PersistentHashedIndex delta = null;
+
+    /** Whether the next cleanup adds the new documents to the delta segment. */
+    boolean incremental = false;
+
+    /** Whether the next incremental cleanup compacts the index in any case. */
+    boolean forceCompaction = false;
+
+    /** The recently read postings lists, or null if every list is read from disk. */
+    PostingsCache cache = null;
 
-    FileOutputStream fout;
 
     /** The cache as a main-memory hash map. */
     HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
 
-    public final long SIZE = 200;
-    public boolean firtTime = true;
+    /** Size in bytes of one entry of the dictionary hashtable. */
+    public final long SIZE = 24;
 
     // ===================================================================
 
     /**
      *   A helper class representing one entry in the dictionary hashtable.
+     *
+     *   An entry is stored on SIZE bytes: the fingerprint of the term, the
+     *   place of the term in the terms file, the place and the length of
+     *   the postings list in the data file and the number of documents in
+     *   the list. The terms themselves are kept in the terms file, as their
+     *   length followed by their UTF-8 bytes, so that long terms are never
+     *   truncated and a probe only reads a term when the fingerprints match.
      */
     public class Entry {
         public String token = null;
+        public int fingerprint = 0;
+        public int termPtr = 0;
         public long location = 0;
         public int size = 0;
-        public String separator = "|";
+        public int df = 0;
 
         public Entry() {}
 
-        public Entry(String s) {
-            //System.out.println(s);
-            String[] elts = s.split("\\" + separator);
-            if(elts.length == 4) {
-                this.token = elts[0];
-                this.location = Long.parseLong(elts[1]);
-                this.size = Integer.parseInt(elts[2]);
-            }
+        /** Reads an entry from the SIZE bytes at the position of the buffer. */
+        public Entry(ByteBuffer data) {
+            this.fingerprint = data.getInt();
+            this.termPtr = data.getInt();
+            this.location = data.getLong();
+            this.size = data.getInt();
+            this.df = data.getInt();
         }
 
-        public Entry(String token, int location, int size) {
-            this.token = token;
-            this.location = location;
-            this.size = size;
+        public byte[] toBytes() {
+            ByteBuffer data = ByteBuffer.allocate((int)SIZE);
+            data.putInt(this.fingerprint);
+            data.putInt(this.termPtr);
+            data.putLong(this.location);
+            data.putInt(this.size);
+            data.putInt(this.df);
+            return data.array();
         }
+    }
 
-        public String toString() {
-            //token;location;size
-            String data = separator + Long.toString(this.location) + separator + Integer.toString(this.size) + separator;
-            String s = "";
-            for(int i=0;i<this.token.length()&&i<SIZE-data.length();++i) {
-                s += this.token.charAt(i);
-            }
-            s += data;
-            for(int i=s.length();i < SIZE;++i) {
-                s += "_";
-            }
-            //System.out.println(s);
-            return s;
-        }
+    /**
+     *  A 32 bits hash of the term which is compared before the term itself
+     *  when probing. It is never 0, which marks a free entry.
+     */
+    public static int fingerprint(String token) {
+        int f = token.hashCode();
+        return f != 0 ? f : 1;
     }
 
 
@@ -115,17 +166,35 @@ public class PersistentHashedIndex implements Index {
      *  If these files don't exist, they will be created.
      */
     public PersistentHashedIndex() {
+        this("");
         try {
-            dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME, "rw" );
-            dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "rw" );
+            readDocInfo();
+            readTombstones();
+            norms.compute(documents);
+        }
+        catch ( FileNotFoundException e ) {
         }
         catch ( IOException e ) {
             e.printStackTrace();
         }
-        try {
-            readDocInfo();
+        if ( new File( INDEXDIR + "/" + DICTIONARY_FNAME + DELTA_SUFFIX ).exists() ) {
+            delta = new PersistentHashedIndex( DELTA_SUFFIX );
         }
-        catch ( FileNotFoundException e ) {
+    }
+
+    /**
+     *  Opens the files of a segment whose names end with suffix, without
+     *  the document information, which the segments share.
+     */
+    PersistentHashedIndex( String suffix ) {
+        if ( suffix.isEmpty() ) {
+            // The files of an index whose installation was interrupted are moved in place first.
+            CommitPoint.recover( new File( INDEXDIR ));
+        }
+        try {
+            dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME + suffix, "rw" );
+            dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME + suffix, "rw" );
+            termsFile = new RandomAccessFile( INDEXDIR + "/" + TERMS_FNAME + suffix, "rw" );
         }
         catch ( IOException e ) {
             e.printStackTrace();
@@ -137,10 +206,9 @@ public class PersistentHashedIndex implements Index {
      *
      *  @return The number of bytes written.
      */
-    int writeData(String dataString, long ptr) {
+    int writeData(byte[] data, long ptr) {
         try {
             dataFile.seek(ptr);
-            byte[] data = dataString.getBytes("UTF-8");
             dataFile.write(data);
             return data.length;
         }
@@ -152,14 +220,15 @@ public class PersistentHashedIndex implements Index {
 
 
     /**
-     *  Reads data from the data file
+     *  Reads data from the data file. Like the other reads of the index, it
+     *  reads at an absolute place without moving the file pointer, so that
+     *  concurrent searches do not need to take turns.
      */
-    String readData(long ptr, int size) {
+    byte[] readData(long ptr, int size) {
         try {
-            dataFile.seek(ptr);
             byte[] data = new byte[size];
-            dataFile.readFully(data);
-            return new String(data);
+            readFully(dataFile, ByteBuffer.wrap(data), ptr);
+            return data;
         }
         catch ( IOException e ) {
             e.printStackTrace();
@@ -175,34 +244,30 @@ public class PersistentHashedIndex implements Index {
     /*
      *  Writes an entry to the dictionary hash table file.
      *
-     *  @param entry The key of this entry is assumed to have a fixed length
+     *  @param entry The entry, its term must already be in the terms file
      *  @param ptr   The place in the dictionary file to store the entry
      */
     void writeEntry(Entry entry, long ptr) {
         try {
             dictionaryFile.seek(ptr);
-            byte[] data = entry.toString().getBytes("UTF-8");
-            dictionaryFile.write(data);
-            //System.out.println("Size " + data.length);
+            dictionaryFile.write(entry.toBytes());
         } catch ( IOException e ) {
             e.printStackTrace();
         }
     }
 
     /**
-     *  Reads an entry from the dictionary file.
+     *  Reads an entry from the dictionary file, without its term.
      *
      *  @param ptr The place in the dictionary file where to start reading.
+     *  @return The entry, or null if this place of the hashtable is free.
      */
     Entry readEntry(long ptr) {
         try{
-            dictionaryFile.seek(ptr);
             byte[] data = new byte[(int)SIZE];
-            dictionaryFile.readFully(data);
-            Entry entry = new Entry(new String(data));
-            if(entry.token != null) {
-                // System.out.println("collision");
-                // System.out.println(new String(data));
+            readFully(dictionaryFile, ByteBuffer.wrap(data), ptr);
+            Entry entry = new Entry(ByteBuffer.wrap(data));
+            if(entry.fingerprint != 0) {
                 return entry;
             } else {
                 return null;
@@ -215,44 +280,131 @@ public class PersistentHashedIndex implements Index {
         return null;
     }
 
+    /**
+     *  Appends a term to a terms file.
+     *
+     *  @return The place of the term in the file.
+     */
+    static long writeTerm(RandomAccessFile file, long ptr, String token) throws IOException {
+        byte[] term = token.getBytes(StandardCharsets.UTF_8);
+        byte[] data = new byte[term.length + 5];
+        int length = PostingsCodec.writeVByte(data, 0, term.length);
+        System.arraycopy(term, 0, data, length, term.length);
+        file.seek(ptr);
+        file.write(data, 0, length + term.length);
+        return length + term.length;
+    }
+
+    /**
+     *  Reads the term at a given place of a terms file.
+     */
+    static String readTerm(RandomAccessFile file, long ptr) throws IOException {
+        // The length takes at most 5 bytes, the last term may be shorter.
+        ByteBuffer header = ByteBuffer.allocate(5);
+        FileChannel channel = file.getChannel();
+        while(header.hasRemaining() && channel.read(header, ptr + header.position()) > 0) {
+        }
+        int length = 0;
+        int shift = 0;
+        int i = 0;
+        int b;
+        do {
+            if(i == header.position()) {
+                throw new EOFException();
+            }
+            b = header.get(i++) & 0xFF;
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        byte[] term = new byte[length];
+        readFully(file, ByteBuffer.wrap(term), ptr + i);
+        return new String(term, StandardCharsets.UTF_8);
+    }
+
+    /**
+     *  Fills a buffer with the bytes at a given place of a file. The file
+     *  pointer does not move, so several threads may read the same file.
+     */
+    static void readFully(RandomAccessFile file, ByteBuffer buffer, long ptr) throws IOException {
+        FileChannel channel = file.getChannel();
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, ptr + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
 
     // ==================================================================
 
     /**
-     *  Writes the document names and document lengths to file.
+     *  Writes the document names and document lengths to file, replacing
+     *  the former file as a whole, and opens it for the searches.
      *
      * @throws IOException  { exception_description }
      */
     public void writeDocInfo() throws IOException {
-        fout = new FileOutputStream( INDEXDIR + "/docInfo", !firtTime);
-        firtTime = false;
-        for (Map.Entry<Integer,String> entry : docNames.entrySet()) {
-            Integer key = entry.getKey();
-            String docInfoEntry = key + ";" + entry.getValue() + ";" + docLengths.get(key) + "\n";
-            fout.write(docInfoEntry.getBytes("UTF-8"));
+        File file = new File( INDEXDIR + "/" + DOCINFO_FNAME );
+        DocumentStore.write(file, docNames, docLengths);
+        documents.open(file);
+    }
+
+
+    /**
+     *  Writes the docIDs of the deleted documents to file, or removes the
+     *  file if there are none.
+     */
+    public void writeTombstones() throws IOException {
+        File file = new File( INDEXDIR + "/" + TOMBSTONES_FNAME );
+        if ( deletedDocs.isEmpty() ) {
+            file.delete();
+            return;
+        }
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(deletedDocs.toByteArray());
         }
-        fout.close();
     }
 
 
     /**
-     *  Reads the document names and document lengths from file, and
-     *  put them in the appropriate data structures.
+     *  Reads the docIDs of the deleted documents, if there are any.
+     */
+    public void readTombstones() throws IOException {
+        File file = new File( INDEXDIR + "/" + TOMBSTONES_FNAME );
+        deletedDocs.clear();
+        if ( file.exists() ) {
+            byte[] data = new byte[(int)file.length()];
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                in.readFully(data);
+            }
+            deletedDocs.or(BitSet.valueOf(data));
+        }
+    }
+
+
+    /**
+     *  Maps the document names and document lengths file in memory. The
+     *  searches read the documents from it, docNames and docLengths stay
+     *  empty until loadDocInfo.
      *
      * @throws     IOException  { exception_description }
      */
     public void readDocInfo() throws IOException {
-        File file = new File( INDEXDIR + "/docInfo" );
-        FileReader freader = new FileReader(file);
-        try (BufferedReader br = new BufferedReader(freader)) {
-            String line;
-            while ((line = br.readLine()) != null) {
-               String[] data = line.split(";");
-               docNames.put(new Integer(data[0]), data[1]);
-               docLengths.put(new Integer(data[0]), new Integer(data[2]));
-            }
+        documents.open(new File( INDEXDIR + "/" + DOCINFO_FNAME ));
+    }
+
+
+    /**
+     *  Puts the documents of the file in docNames and docLengths, to add
+     *  documents to the index.
+     *
+     * @throws     IOException  if the file could not be opened
+     */
+    public void loadDocInfo() throws IOException {
+        if ( !documents.isOpen() ) {
+            throw new IOException( "no document file in " + INDEXDIR );
         }
-        freader.close();
+        documents.readInto(docNames, docLengths);
     }
 
 
@@ -262,23 +414,43 @@ public class PersistentHashedIndex implements Index {
     public void writeIndex() {
         int collisions = 0;
 
+        if(cache != null) {
+            cache.clear();
+        }
+
+        // Entries left in the files by a former index would be found by the probes.
+        try {
+            dictionaryFile.setLength(0);
+            dataFile.setLength(0);
+            termsFile.setLength(0);
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
         this.free = 0;
+        this.termsFree = 0;
         int i = 0;
-        // Write the dictionary and the postings list
+        // Write the dictionary, the terms and the postings list
         for(String key : index.keySet()) {
             i++;
             Entry entry = new Entry();
             entry.token = key;
+            entry.fingerprint = fingerprint(key);
             //  Manage the Posting List
-            String postingsListStr = index.get(key).toString();
+            byte[] postingsList = PostingsCodec.encode(index.get(key));
             entry.location = this.free;
-            int size = this.writeData(postingsListStr, this.free);
+            int size = this.writeData(postingsList, this.free);
             entry.size = size;
+            entry.df = index.get(key).size();
             this.free += size + 1;
+            try {
+                entry.termPtr = (int)this.termsFree;
+                this.termsFree += writeTerm(termsFile, this.termsFree, key);
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            }
 
             // Manage the entry
             long ptr = this.hash(key);
-            //System.out.println("Hash : " + ptr);
             Entry bucket = readEntry(ptr);
             while(bucket != null) {
                 ptr += SIZE;
@@ -297,41 +469,458 @@ public class PersistentHashedIndex implements Index {
     }
 
 
+    /**
+     *  Writes the files of a segment, in place of the former ones, with
+     *  sequential writes only: the postings and the terms are appended as
+     *  they come, and the dictionary hashtable is built in memory and
+     *  written at once when the writer is closed. The files of the segment
+     *  must not be open for writing meanwhile.
+     */
+    class SequentialWriter implements SortedRun.Sink, Closeable {
+        private final String suffix;
+        private final OutputStream data;
+        private final OutputStream terms;
+        private byte[] table = new byte[(int)(TABLESIZE * SIZE)];
+        private ByteBuffer tableBuffer = ByteBuffer.wrap(table);
+
+        /** End of the last entry used in the table. */
+        private int end = 0;
+        private long free = 0;
+        private long termsFree = 0;
+        private int count = 0;
+        private int collisions = 0;
+
+        SequentialWriter( String suffix ) throws IOException {
+            this.suffix = suffix;
+            this.data = new BufferedOutputStream(new FileOutputStream( INDEXDIR + "/" + DATA_FNAME + suffix ), SortedRun.BUFFER_SIZE);
+            this.terms = new BufferedOutputStream(new FileOutputStream( INDEXDIR + "/" + TERMS_FNAME + suffix ), SortedRun.BUFFER_SIZE);
+        }
+
+        public void add(String token, byte[] postings) throws IOException {
+            Entry entry = new Entry();
+            entry.fingerprint = fingerprint(token);
+            entry.location = this.free;
+            entry.size = postings.length;
+            entry.df = PostingsCodec.readVByte(ByteBuffer.wrap(postings));
+            entry.termPtr = (int)this.termsFree;
+            this.data.write(postings);
+            this.free += postings.length;
+
+            byte[] term = token.getBytes(StandardCharsets.UTF_8);
+            byte[] length = new byte[5];
+            int n = PostingsCodec.writeVByte(length, 0, term.length);
+            this.terms.write(length, 0, n);
+            this.terms.write(term);
+            this.termsFree += n + term.length;
+
+            int ptr = (int)hash(token);
+            while(ptr + SIZE <= this.table.length && this.tableBuffer.getInt(ptr) != 0) {
+                ptr += SIZE;
+                this.collisions++;
+            }
+            if(ptr + SIZE > this.table.length) {
+                this.table = Arrays.copyOf(this.table, 2 * this.table.length);
+                this.tableBuffer = ByteBuffer.wrap(this.table);
+            }
+            System.arraycopy(entry.toBytes(), 0, this.table, ptr, (int)SIZE);
+            this.end = max(this.end, ptr + (int)SIZE);
+            if(++this.count % 100000 == 0) {
+                System.out.println(Integer.toString(this.count) + " tokens written.");
+            }
+        }
+
+        public void close() throws IOException {
+            this.data.close();
+            this.terms.close();
+            try (FileOutputStream out = new FileOutputStream( INDEXDIR + "/" + DICTIONARY_FNAME + this.suffix )) {
+                out.write(this.table, 0, this.end);
+            }
+            System.out.println( this.count + " tokens.");
+            System.out.println( this.collisions + " collisions." );
+        }
+    }
+
+
     // ==================================================================
 
 
     /**
      *  Returns the postings for a specific term, or null
-     *  if the term is not in the index.
+     *  if the term is not in the index. The postings of the delta segment
+     *  are merged in, and those of the deleted documents left out.
      */
     public PostingsList getPostings(String token) {
-        long h = this.hash(token);
-        //System.out.println("Hash : " + h);
-        Entry entry = this.readEntry(h);
+        if(cache != null) {
+            PostingsList list = cache.get(token);
+            if(list != null) {
+                return list;
+            }
+        }
+        PostingsList list = this.readPostings(token);
+        if(delta != null) {
+            PostingsList added = delta.readPostings(token);
+            if(list == null) {
+                list = added;
+            } else if(added != null) {
+                list.merge(added);
+            }
+        }
+        if(list != null && !deletedDocs.isEmpty()) {
+            list = list.without(deletedDocs);
+            if(list.size() == 0) {
+                list = null;
+            }
+        }
+        if(list != null && cache != null) {
+            cache.put(token, list);
+        }
+        return list;
+    }
+
+
+    /**
+     *  Reads the postings of a term from the files of this segment only, or
+     *  returns null if the term is not in them.
+     */
+    PostingsList readPostings(String token) {
+        ByteBuffer data = this.postingsData(token);
+        return data != null ? PostingsCodec.decode(data) : null;
+    }
+
+
+    /**
+     *  Returns the postings of a term, decoding only the blocks which may
+     *  hold one of the documents of candidates.
+     */
+    public PostingsList getPostings(String token, PostingsList candidates) {
+        if(delta != null || !deletedDocs.isEmpty()) {
+            return this.getPostings(token);
+        }
+        if(cache != null) {
+            PostingsList list = cache.get(token);
+            if(list != null) {
+                return list;
+            }
+        }
+        ByteBuffer data = this.postingsData(token);
+        return data != null ? PostingsCodec.decode(data, candidates) : null;
+    }
+
+
+    /**
+     *  Returns a buffer positioned at the encoded postings of a term, or null
+     *  if the term is not in the index.
+     */
+    ByteBuffer postingsData(String token) {
+        if(dictionaryBuffer != null) {
+            long ptr = this.lookupMapped(token.getBytes(StandardCharsets.UTF_8), fingerprint(token), this.hash(token));
+            if(ptr >= 0) {
+                ByteBuffer data = dataBuffer.duplicate();
+                data.position((int)dictionaryBuffer.getLong((int)ptr + 8));
+                return data;
+            }
+            return null;
+        }
+        Entry entry = this.lookup(token);
         if(entry != null) {
-            long ptr = 0;
-            while(entry != null && !entry.token.equals(token)) {
-                entry = this.readEntry(h + ptr);
-                ptr += SIZE;
+            byte[] data = this.readData(entry.location, entry.size);
+            if(data != null) {
+                return ByteBuffer.wrap(data);
             }
-            if(entry != null && entry.token != null) {
-                return new PostingsList(this.readData(entry.location, entry.size));
+        }
+        return null;
+    }
+
+
+    /**
+     *  Finds the dictionary entry of a term, or null if the term is not in
+     *  the index.
+     */
+    Entry lookup(String token) {
+        int f = fingerprint(token);
+        long ptr = this.hash(token);
+        Entry entry = this.readEntry(ptr);
+        while(entry != null) {
+            if(entry.fingerprint == f) {
+                try {
+                    entry.token = readTerm(termsFile, entry.termPtr);
+                } catch ( IOException e ) {
+                    e.printStackTrace();
+                    return null;
+                }
+                if(entry.token.equals(token)) {
+                    return entry;
+                }
             }
+            ptr += SIZE;
+            entry = this.readEntry(ptr);
         }
         return null;
     }
 
 
+    /**
+     *  Reads every entry of the dictionary, with its term, in the order of
+     *  the hashtable.
+     */
+    ArrayList<Entry> readEntries() throws IOException {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        long length = dictionaryFile.length();
+        for(long ptr=0;ptr+SIZE<=length;ptr+=SIZE) {
+            Entry entry = this.readEntry(ptr);
+            if(entry != null) {
+                entry.token = readTerm(termsFile, entry.termPtr);
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /** Reads all the postings lists of this segment in memory. */
+    HashMap<String,PostingsList> readLists() throws IOException {
+        HashMap<String,PostingsList> lists = new HashMap<String,PostingsList>();
+        for(Entry entry : this.readEntries()) {
+            byte[] data = this.readData(entry.location, entry.size);
+            lists.put(entry.token, PostingsCodec.decode(ByteBuffer.wrap(data)));
+        }
+        return lists;
+    }
+
+    /**
+     *  The terms of the index and of its delta segment, for the k-gram index
+     *  of an incremental indexing pass.
+     */
+    public LinkedHashSet<String> terms() throws IOException {
+        LinkedHashSet<String> terms = new LinkedHashSet<String>();
+        for(Entry entry : this.readEntries()) {
+            terms.add(entry.token);
+        }
+        if(delta != null) {
+            terms.addAll(delta.terms());
+        }
+        return terms;
+    }
+
+
+    /**
+     *  Keeps the postings lists read from disk in a cache of at most maxBytes
+     *  bytes, or reads every list from disk if maxBytes is 0. The lists
+     *  returned by getPostings are then shared and must not be modified.
+     */
+    public void setCacheSize(long maxBytes) {
+        cache = maxBytes > 0 ? new PostingsCache(maxBytes) : null;
+    }
+
+    /** The postings cache, to read its counters, or null if there is none. */
+    public PostingsCache getCache() {
+        return cache;
+    }
+
+
+    // ==================================================================
+    //
+    //  Memory-mapped read path.
+
+    /**
+     *  Maps the dictionary and the data files in memory. The index is then
+     *  read-only: lookups probe the mapped dictionary and decode the postings
+     *  straight from the mapped data, without seeks, reads or Strings.
+     */
+    public void mapFiles() throws IOException {
+        if(dictionaryFile.length() > Integer.MAX_VALUE || dataFile.length() > Integer.MAX_VALUE) {
+            throw new IOException("Index files larger than 2GB cannot be mapped");
+        }
+        dictionaryBuffer = dictionaryFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, dictionaryFile.length());
+        dataBuffer = dataFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, dataFile.length());
+        termsBuffer = termsFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, termsFile.length());
+    }
+
+    /**
+     *  Probes the mapped dictionary from ptr for a term, and returns the
+     *  place of its entry or -1 if the term is not in the index. The term
+     *  is only compared with the terms file when the fingerprints match.
+     */
+    long lookupMapped(byte[] token, int fingerprint, long ptr) {
+        while(ptr + SIZE <= dictionaryBuffer.limit()) {
+            int p = (int)ptr;
+            int f = dictionaryBuffer.getInt(p);
+            if(f == 0) {
+                // Free entry: end of the collision chain.
+                return -1;
+            }
+            if(f == fingerprint && this.mappedTermEquals(dictionaryBuffer.getInt(p + 4), token)) {
+                return ptr;
+            }
+            ptr += SIZE;
+        }
+        return -1;
+    }
+
+    /** Compares the term at a given place of the mapped terms file with token. */
+    boolean mappedTermEquals(int ptr, byte[] token) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = termsBuffer.get(ptr++);
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        if(length != token.length) {
+            return false;
+        }
+        for(int i=0;i<length;++i) {
+            if(termsBuffer.get(ptr + i) != token[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
     /**
      *  Inserts this token in the main-memory hashtable.
      */
     public void insert( String token, int docID, int offset ) {
         if(token != null && docID >= 0 && offset >= 0) {
-            if(!index.containsKey(token)) {
-                PostingsList list = new PostingsList();
+            PostingsList list = index.get(token);
+            if(list == null) {
+                list = new PostingsList();
                 index.put(token,list);
             }
-            index.get(token).add(docID, 0, offset);
+            list.append(docID, offset);
+        }
+    }
+
+
+    /**
+     *  Moves the postings of shards, whose documents are not in this index
+     *  nor in another shard, into the main-memory hashtable, before the
+     *  index is written, on threads threads. Returns the new terms in the
+     *  order of their first occurrence.
+     */
+    public ArrayList<String> merge( List<HashedIndex> shards, int threads ) {
+        return HashedIndex.mergeInto(index, shards, threads);
+    }
+
+
+    /**
+     *  Adds the documents indexed from now on to the delta segment on
+     *  cleanup, rather than rewriting the index, and compacts the index
+     *  if compact is true or the delta segment or the deleted documents
+     *  have grown too large.
+     */
+    public void setIncremental( boolean compact ) {
+        incremental = true;
+        forceCompaction = compact;
+    }
+
+
+    /**
+     *  Forgets the documents of the index before it is built again from
+     *  scratch, with its delta segment and its deleted documents.
+     */
+    public void reset() {
+        docNames.clear();
+        docLengths.clear();
+        documents.close();
+        deletedDocs.clear();
+        deleteDelta();
+        new File( INDEXDIR + "/" + TOMBSTONES_FNAME ).delete();
+        if(cache != null) {
+            cache.clear();
+        }
+    }
+
+
+    /** Closes and removes the files of the delta segment. */
+    void deleteDelta() {
+        if ( delta == null ) {
+            return;
+        }
+        try {
+            delta.dictionaryFile.close();
+            delta.dataFile.close();
+            delta.termsFile.close();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+        new File( INDEXDIR + "/" + DICTIONARY_FNAME + DELTA_SUFFIX ).delete();
+        new File( INDEXDIR + "/" + DATA_FNAME + DELTA_SUFFIX ).delete();
+        new File( INDEXDIR + "/" + TERMS_FNAME + DELTA_SUFFIX ).delete();
+        delta = null;
+    }
+
+
+    /**
+     *  Writes the postings indexed incrementally. They are merged with the
+     *  delta segment, which is written again without the postings of the
+     *  deleted documents. When the index is compacted, the main segment is
+     *  merged in too and written again, and there is no delta segment nor
+     *  deleted document any more.
+     */
+    void writeIncrementally() throws IOException {
+        HashMap<String,PostingsList> lists = delta != null ? delta.readLists() : new HashMap<String,PostingsList>();
+        mergeLists(lists, index);
+        BitSet deltaDocs = new BitSet();
+        for(PostingsList list : lists.values()) {
+            for(int i=0;i<list.size();++i) {
+                deltaDocs.set(list.getDocID(i));
+            }
+        }
+        deltaDocs.andNot(deletedDocs);
+        int deleted = deletedDocs.cardinality();
+        boolean compact = forceCompaction
+            || deltaDocs.cardinality() > COMPACTION_RATIO * docNames.size()
+            || deleted > COMPACTION_RATIO * (docNames.size() + deleted);
+        if(compact) {
+            System.out.print( "compacting..." );
+            HashMap<String,PostingsList> main = this.readLists();
+            mergeLists(main, lists);
+            lists = main;
+        }
+        Iterator<Map.Entry<String,PostingsList>> it = lists.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<String,PostingsList> entry = it.next();
+            PostingsList list = entry.getValue().without(deletedDocs);
+            if(list.size() == 0) {
+                it.remove();
+            } else {
+                entry.setValue(list);
+            }
+        }
+        if(compact) {
+            index = lists;
+            writeIndex();
+            deleteDelta();
+            deletedDocs.clear();
+        } else if(lists.isEmpty()) {
+            deleteDelta();
+        } else {
+            if(delta == null) {
+                delta = new PersistentHashedIndex( DELTA_SUFFIX );
+            }
+            delta.index = lists;
+            delta.writeIndex();
+            delta.index = new HashMap<String,PostingsList>();
+            if(cache != null) {
+                cache.clear();
+            }
+        }
+        index = new HashMap<String,PostingsList>();
+        writeTombstones();
+    }
+
+
+    /** Merges the lists of source, whose documents are not in target, into target. */
+    static void mergeLists(HashMap<String,PostingsList> target, HashMap<String,PostingsList> source) {
+        for(Map.Entry<String,PostingsList> entry : source.entrySet()) {
+            PostingsList list = target.get(entry.getKey());
+            if(list == null) {
+                target.put(entry.getKey(), entry.getValue());
+            } else {
+                list.merge(entry.getValue());
+            }
         }
     }
 
@@ -342,12 +931,21 @@ public class PersistentHashedIndex implements Index {
     public void cleanup() {
         System.out.println( index.keySet().size() + " unique words" );
         System.out.print( "Writing index to disk..." );
+        // The bounds of the lists written come from the norms.
+        norms.compute(docNames.size(), docLengths);
+        // The commit of a former scalable build does not describe the files written now.
+        CommitPoint.delete( new File( INDEXDIR ));
         try {
             writeDocInfo();
+            if ( incremental ) {
+                writeIncrementally();
+            }
+            else {
+                writeIndex();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
-        writeIndex();
         System.out.println( "done!" );
      }
 
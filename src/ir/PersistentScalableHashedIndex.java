@@ -2,345 +2,592 @@ package ir;
 
 import java.io.*;
 import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 import java.nio.charset.*;
 import static java.lang.Math.*;
 import java.io.File;
 import java.lang.Thread;
 
+/**
+ *  A persistent index built in blocks, which are written to disk as soon
+ *  as the estimated memory of their postings lists reaches a budget, and
+ *  merged into one by a MergeScheduler, partly while the documents are
+ *  still being indexed.
+ *
+ *  The blocks and the segments merged from them are SortedRuns, with
+ *  their lists sorted by term, so that a merge reads all its inputs and
+ *  writes its output sequentially, in one pass which only holds one list
+ *  of each input in memory. The last merge writes the hashed dictionary
+ *  of the index itself.
+ *
+ *  Each block and each merge is committed in a CommitPoint, with the
+ *  documents of the blocks written so far in a journal, so that a build
+ *  which dies is resumed from its last block (see resume). The files of
+ *  the index are only replaced once the last merge is committed.
+ */
 public class PersistentScalableHashedIndex extends PersistentHashedIndex {
-    public final int BLOCKSIZE = 50000;
-    public int indexNumber = -1;
-    public ArrayList<String> indexsNumbers;
-    public Thread threadMerger;
-    public boolean indexingFinished = false;
-    public ArrayList<Thread> threads = new ArrayList<Thread>();
+    public int indexNumber = 0;
+
+    /** Fraction of the largest heap the block takes by default. */
+    public static final double DEFAULT_BUDGET_RATIO = 0.25;
+
+    /**
+     *  Estimated bytes taken by a term of the block besides its postings
+     *  list: the String, its chars and the node of the hashtable.
+     */
+    static final int TERM_OVERHEAD = 96;
+
+    /**
+     *  A block grows to at most this many times the budget within a
+     *  document, before it ends inside the document.
+     */
+    static final int MAX_BLOCK_RATIO = 2;
+
+    /** The block is written when its estimated memory reaches this many bytes. */
+    private long blockBudget = (long)(Runtime.getRuntime().maxMemory() * DEFAULT_BUDGET_RATIO);
+
+    /** Estimated memory of the block being built, and its number of positions. */
+    private long blockBytes = 0;
+    private long blockPositions = 0;
+
+    /** Totals over the blocks written, for the flush report. */
+    private long flushedBlockBytes = 0;
+    private long flushedDiskBytes = 0;
+    private long flushNanos = 0;
+    private int flushedBlocks = 0;
+
+    /** The last commit of the build, or null until a build starts or resumes. */
+    private CommitPoint commit = null;
+
+    /** Appends to the journal, with the length and CRC32 of all its bytes. */
+    private FileOutputStream journalFile = null;
+    private DataOutputStream journal = null;
+    private CRC32 journalChecksum = null;
+    private long journalLength = 0;
+
+    /** The next docID to journal, and the docID of the last posting inserted. */
+    private int journaledDocID = 0;
+    private int lastDocID = -1;
+
+    /** The deleted documents whose tombstone is in the journal. */
+    private BitSet journaledDeletions = new BitSet();
+
+    /** The last document cut by a block whose tombstone is in the journal, or -1. */
+    private int journaledPartialDocID = -1;
+
+    /** Prefix of the files of the blocks and of the segments merged from them. */
+    public static final String RUN_FNAME = "run";
+
+    /** Name of the segment which is the index itself, written by the last merge. */
+    static final String INDEX_SEGMENT = "";
+
+    /**
+     *  The journal file name. It holds, for each document of the committed
+     *  blocks, its docID, length, file size, file modification time, and
+     *  the length and UTF-8 bytes of its name, and for each document deleted
+     *  since the build started, such as the former version of a file which
+     *  changed, a tombstone: its docID and a length of DELETED, with no name.
+     */
+    public static final String JOURNAL_FNAME = "journal";
+
+    /** The length of the tombstone of a deleted document in the journal. */
+    static final int DELETED = -1;
+
+    /** Number of threads merging blocks at once. */
+    private int mergeThreads = 1;
+
+    /** Number of blocks of one level merged together. */
+    private int mergeFactor = MergeScheduler.DEFAULT_FACTOR;
+
+    /** Largest merge backlog in segments and bytes, or 0 for the default of the scheduler. */
+    private int maxBacklogSegments = 0;
+    private long maxBacklogBytes = 0;
+
+    /** The scheduler of the merges, created with the first block. */
+    private MergeScheduler scheduler = null;
 
     public PersistentScalableHashedIndex() {
         super();
         //this.TABLESIZE = 10000000;
-        indexsNumbers = new ArrayList<String>();
-        threadMerger = new Thread(){
-            ArrayList<Thread> threads = new ArrayList<Thread>();
-
-            public void run() {
-                while(!indexingFinished) {
-                    Thread thread = null;
-                    synchronized(indexsNumbers) {
-                        if(indexsNumbers.size() >= 2) {
-                            thread = new Thread() {
-                                public void run() {
-                                    String s1 = "";
-                                    String s2 = "";
-                                    synchronized(indexsNumbers) {
-                                        if(indexsNumbers.size() >= 2) {
-                                            s1 = indexsNumbers.get(0);
-                                            s2 = indexsNumbers.get(1);
-                                            indexsNumbers.remove(0);
-                                            indexsNumbers.remove(0);
-                                        } else {
-                                            System.out.println("Erreur");
-                                            return;
-                                        }
-                                    }
-                                    System.out.println("Merge block " + s1 + " and " + s2 + "...");
-                                    mergeIndex(s1, s2);
-                                    System.out.println("Merge block " + s1 + " and " + s2 + " finished");
-                                }
-                            };
-                        }
-                    }
-                    if(thread != null) {
-                        threads.add(thread);
-                        thread.start();
-                    }
-                    try {
-                        Thread.sleep(500);
-                    } catch(InterruptedException e) {
+    }
 
-                    }
-                }
-                boolean threadRunning = true;
-                while(threadRunning) {
-                    threadRunning = false;
-                    while(indexsNumbers.size() >= 2) {
-                        Thread thread = new Thread() {
-                            public void run() {
-                                String s1 = "";
-                                String s2 = "";
-                                synchronized(indexsNumbers) {
-                                    s1 = indexsNumbers.get(0);
-                                    s2 = indexsNumbers.get(1);
-                                    indexsNumbers.remove(0);
-                                    indexsNumbers.remove(0);
-                                }
-                                System.out.println("Merge block " + s1 + " and " + s2 + "...");
-                                mergeIndex(s1, s2);
-                                System.out.println("Merge block " + s1 + " and " + s2 + " finished");
-                            }
-                        };
-                        threads.add(thread);
-                        thread.start();
-                        try {
-                            Thread.sleep(500);
-                        } catch(InterruptedException e) {
+    /** Merges blocks on at most this many threads at once. */
+    public void setMergeThreads(int threads) {
+        this.mergeThreads = Math.max(threads, 1);
+    }
 
-                        }
-                    }
-                    while(threads.size() > 0) {
-                        threadRunning = true;
-                        try {
-                            threads.get(0).join();
-                        } catch(InterruptedException e) {
+    /**
+     *  Writes a block when its postings take about bytes bytes of memory.
+     *  Blocks end between documents, unless a single document takes the
+     *  block to MAX_BLOCK_RATIO times the budget.
+     */
+    public void setBlockBudget(long bytes) {
+        this.blockBudget = Math.max(bytes, 1);
+    }
 
-                        }
-                        threads.remove(0);
-                    }
-                    System.out.println(indexsNumbers.size());
+    /**
+     *  Blocks the indexing when more than segments segments, or more than
+     *  bytes bytes, wait for a merge thread; 0 keeps the default limit.
+     */
+    public void setMaxMergeBacklog(int segments, long bytes) {
+        this.maxBacklogSegments = segments;
+        this.maxBacklogBytes = bytes;
+    }
+
+    /** Merges the blocks of a level by groups of factor. */
+    public void setMergeFactor(int factor) {
+        this.mergeFactor = Math.max(factor, 2);
+    }
+
+    /** The scheduler, which is given the segments of a resumed build when it is created. */
+    private synchronized MergeScheduler scheduler() {
+        if(scheduler == null) {
+            scheduler = new MergeScheduler(new MergeScheduler.Merger() {
+                public long merge(List<String> segments, String target) throws IOException {
+                    return mergeIndex(segments, target);
                 }
-                finish();
+            }, mergeFactor, mergeThreads);
+            if(maxBacklogSegments > 0 || maxBacklogBytes > 0) {
+                scheduler.setMaxBacklog(maxBacklogSegments > 0 ? maxBacklogSegments : Integer.MAX_VALUE,
+                                        maxBacklogBytes > 0 ? maxBacklogBytes : Long.MAX_VALUE);
             }
-        };
-        threadMerger.start();
+            if(commit != null) {
+                for(CommitPoint.Segment segment : new ArrayList<CommitPoint.Segment>(commit.segments.values())) {
+                    scheduler.restore(segment.name, segment.level, segment.size);
+                }
+            }
+        }
+        return scheduler;
+    }
+
+    private static File indexDir() {
+        return new File( INDEXDIR );
     }
 
     /**
      *  Inserts this token in the main-memory hashtable.
     */
     public void insert( String token, int docID, int offset ) {
-        if(indexNumber == -1) {
-            indexNumber++;
-            prepareNewIndex();
+        if(docID != this.lastDocID && this.blockBytes >= this.blockBudget) {
+            // Blocks end between documents, so that the journal only holds whole documents.
+            writeIndex();
+        } else if(this.blockBytes >= MAX_BLOCK_RATIO * this.blockBudget) {
+            // A document too large for a block is journaled with the block of its end.
+            this.writeBlock(docID - 1, docID);
         }
         if(token != null && docID >= 0 && offset >= 0) {
-            if(!index.containsKey(token)) {
-                PostingsList list = new PostingsList();
+            this.lastDocID = docID;
+            PostingsList list = this.index.get(token);
+            if(list == null) {
+                list = new PostingsList();
                 this.index.put(token,list);
+                this.blockBytes += TERM_OVERHEAD + 2L * token.length();
+            } else {
+                this.blockBytes -= list.memorySize();
             }
-            this.index.get(token).add(docID, 0, offset);
-        }
-        if(this.index.size() >= BLOCKSIZE) {
-            //System.out.println("BLOCKSIZE reached.");
-            writeIndex();
+            list.append(docID, offset);
+            // Only the arrays which grew change the estimate.
+            this.blockBytes += list.memorySize();
+            this.blockPositions++;
         }
     }
 
+    /** Writes the main-memory hashtable as a block, and hands it over to the merges. */
     public void writeIndex() {
-        //System.out.println("Write index " + Integer.toString(this.indexNumber));
-        super.writeIndex();
-        synchronized(indexsNumbers) {
-            indexsNumbers.add(Integer.toString(this.indexNumber));
-        }
-        this.indexNumber++;
-        prepareNewIndex();
+        this.writeBlock(this.lastDocID, -1);
     }
 
-    public void prepareNewIndex() {
-        // System.out.println("Prepare new index " + Integer.toString(this.indexNumber));
+    /**
+     *  Writes the main-memory hashtable as a block, journals the documents
+     *  up to lastDocID, commits them with the block, and hands the block
+     *  over to the merges. If partialDocID is not -1, the block ends inside
+     *  this document, which gets a tombstone until it is journaled.
+     */
+    private void writeBlock(int lastDocID, int partialDocID) {
+        String name = Integer.toString(this.indexNumber);
+        File file = runFile(name);
+        long start = System.nanoTime();
         try {
-            dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME + Integer.toString(this.indexNumber), "rw" );
-            dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME + Integer.toString(this.indexNumber), "rw" );
-        }
-        catch ( IOException e ) {
+            if(this.commit == null) {
+                this.startBuild();
+            }
+            // Created before the block is committed, as it takes the committed segments.
+            scheduler();
+            long checksum = SortedRun.write(file, this.index);
+            this.journalDocuments(lastDocID, partialDocID);
+            synchronized(this.commit) {
+                this.commit.segments.put(name, new CommitPoint.Segment(name, 0, file.length(), checksum));
+                this.commit.nextBlock = this.indexNumber + 1;
+                this.commit.journalLength = this.journalLength;
+                this.commit.journalChecksum = this.journalChecksum.getValue();
+                this.commit.write(indexDir());
+            }
+        } catch ( IOException e ) {
             e.printStackTrace();
+            return;
         }
-        this.free = 0;
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("Block %s: %d terms, %d positions, %.1f MB in memory, %.1f MB written in %d ms",
+                                         name, this.index.size(), this.blockPositions, this.blockBytes / 1e6,
+                                         file.length() / 1e6, elapsed / 1000000));
+        this.flushedBlockBytes += this.blockBytes;
+        this.flushedDiskBytes += file.length();
+        this.flushNanos += elapsed;
+        this.flushedBlocks++;
         this.index.clear();
-        // this.docNames.clear();
-        // this.docLengths.clear();
+        this.blockBytes = 0;
+        this.blockPositions = 0;
+        this.indexNumber++;
+        MergeScheduler scheduler = scheduler();
+        long stalled = scheduler.stallNanos();
+        scheduler.add(name, file.length());
+        stalled = scheduler.stallNanos() - stalled;
+        if(stalled > 0) {
+            System.out.println(String.format("Block %s waited %d ms for the merges, %d segments waiting, %d merges running",
+                                             name, stalled / 1000000, scheduler.waitingSegments(), scheduler.runningMerges()));
+        }
     }
 
-    public void mergeIndex(String n1, String n2) {
+    /**
+     *  Journals and commits the documents deleted since the last block, so
+     *  that a build which dies in the last merge does not bring them back.
+     */
+    private void commitDeletions() {
+        if(this.commit == null) {
+            return;
+        }
+        BitSet deletions = (BitSet)deletedDocs.clone();
+        deletions.andNot(this.journaledDeletions);
+        if(deletions.isEmpty()) {
+            return;
+        }
         try {
-            RandomAccessFile dictionaryTmp = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME + n1 + "_" + n2, "rw" );
-            RandomAccessFile dataTmp = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME + n1 + "_" + n2, "rw" );
-            RandomAccessFile dictionary1 = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME + n1, "rw" );
-            RandomAccessFile dictionary2 = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME + n2, "rw" );
-            RandomAccessFile data1 = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME + n1, "rw" );
-            RandomAccessFile data2 = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME + n2, "rw" );
-            HashMap<String,Entry> dic1 = readDictionary(dictionary1);
-            //System.out.println("Dic 1 : " + dic1.size() + " elements.");
-            HashMap<String,Entry> dic2 = readDictionary(dictionary2);
-            //System.out.println("Dic 2 : " + dic2.size() + " elements.");
-            long ptr = 0;
-            // PostingsList list1;
-            // PostingsList list2;
-
-            for(Map.Entry<String, Entry> entry : dic1.entrySet()) {
-                PostingsList list1 = new PostingsList(readData(data1, entry.getValue().location, entry.getValue().size));
-                if(dic2.containsKey(entry.getKey())) {
-                    PostingsList list2 = new PostingsList(readData(data2, dic2.get(entry.getKey()).location, dic2.get(entry.getKey()).size));
-                    if(list1.list.size() >= list2.list.size()) {
-                        list1.merge(list2);
-                        // for(int i=0;i<list1.list.size()-1;i++) {
-                        //     if(list1.get(i).docID > list1.get(i+1).docID) {
-                        //         System.out.println("ERRRRRRRRRRRRRORRRRRRRR");
-                        //         System.out.println(list1.toString());
-                        //         System.out.println(list2.toString());
-                        //         break;
-                        //     }
-                        // }
-                        ptr += this.writeEntry(dictionaryTmp, dataTmp, entry.getKey(), list1, ptr); // We write the token and posting list here
-                    } else {
-                        list2.merge(list1);
-                        // for(int i=0;i<list2.list.size()-1;i++) {
-                        //     if(list2.get(i).docID > list2.get(i+1).docID) {
-                        //         System.out.println("ERRRRRRRRRRRRRORRRRRRRR");
-                        //         System.out.println(list1.toString());
-                        //         System.out.println(new PostingsList(readData(data2, dic2.get(entry.getKey()).location, dic2.get(entry.getKey()).size)).toString());
-                        //         System.out.println(list2.toString());
-                        //     }
-                        // }
-                        ptr += this.writeEntry(dictionaryTmp, dataTmp, entry.getKey(), list2, ptr); // We write the token and posting list here
-                    }
-                    dic2.remove(entry.getKey()); // Token proceed
-                } else {
-                    ptr += this.writeEntry(dictionaryTmp, dataTmp, entry.getKey(), list1, ptr); // We write the token and posting list here
-                }
-                ptr += 1;
-            }
-            // System.out.println("Dic 1 finished");
-            // System.out.println("Dic 2 " + dic2.size() + " keys left.");
-            for(Map.Entry<String, Entry> entry : dic2.entrySet()) {
-                PostingsList list1 = new PostingsList(readData(data2, entry.getValue().location, entry.getValue().size));
-                ptr += this.writeEntry(dictionaryTmp, dataTmp, entry.getKey(), list1, ptr);
-                ptr += 1;
-            }
-            //System.out.println("Dic 2 finished");
-
-            synchronized(indexsNumbers) {
-                indexsNumbers.add(n1+"_"+n2);
+            this.journalDocuments(this.journaledDocID - 1, -1);
+            synchronized(this.commit) {
+                this.commit.journalLength = this.journalLength;
+                this.commit.journalChecksum = this.journalChecksum.getValue();
+                this.commit.write(indexDir());
             }
-            this.removeFile(INDEXDIR + "/" + DICTIONARY_FNAME + n1);
-            this.removeFile(INDEXDIR + "/" + DICTIONARY_FNAME + n2);
-            this.removeFile(INDEXDIR + "/" + DATA_FNAME + n1);
-            this.removeFile(INDEXDIR + "/" + DATA_FNAME + n2);
-            // HashMap<String,Entry> test = readDictionary(dictionaryTmp);
-            // System.out.println("test 1 : " + dic1.size() + " elements.");
         } catch ( IOException e ) {
+            e.printStackTrace();
         }
     }
 
-    public void cleanup() {
-        if(index.size() > 0) {
-            super.writeIndex();
-            synchronized(indexsNumbers) {
-                indexsNumbers.add(Integer.toString(this.indexNumber));
+    private static File runFile(String segment) {
+        return new File( INDEXDIR + "/" + RUN_FNAME + segment );
+    }
+
+    /** Starts a new build: removes what an unfinished build left, and opens an empty journal. */
+    private void startBuild() throws IOException {
+        File[] files = indexDir().listFiles();
+        for(int i=0;files!=null && i<files.length;++i) {
+            if(files[i].getName().startsWith(RUN_FNAME)) {
+                files[i].delete();
             }
         }
-        indexingFinished = true;
+        this.commit = new CommitPoint();
+        this.journaledDeletions = new BitSet();
+        this.openJournal(new CRC32(), 0);
     }
 
-    public void finish() {
-        if(indexsNumbers.size() > 0) {
-            removeFile( INDEXDIR + "/" + DICTIONARY_FNAME);
-            removeFile( INDEXDIR + "/" + DATA_FNAME);
-            renameFile( INDEXDIR + "/" + DICTIONARY_FNAME + indexsNumbers.get(0), INDEXDIR + "/" + DICTIONARY_FNAME);
-            renameFile( INDEXDIR + "/" + DATA_FNAME + indexsNumbers.get(0), INDEXDIR + "/" + DATA_FNAME);
-            try {
-                writeDocInfo();
-                dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME, "rw" );
-                dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "rw" );
-                // HashMap<String,Entry> test = readDictionary(dictionaryFile);
-                // System.out.println("Test : " + test.size() + " elements.");
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    /** Opens the journal to append to its first length bytes, whose CRC32 is in checksum. */
+    private void openJournal(CRC32 checksum, long length) throws IOException {
+        File file = new File( INDEXDIR + "/" + JOURNAL_FNAME );
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // Drops what was written after the last commit.
+            raf.setLength(length);
         }
-        System.out.println( "done!" );
+        this.journalFile = new FileOutputStream(file, true);
+        this.journalChecksum = checksum;
+        this.journal = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(this.journalFile, checksum), SortedRun.BUFFER_SIZE));
+        this.journalLength = length;
     }
 
-    public HashMap<String,Entry> readDictionary(RandomAccessFile file) {
-        long ptr = 0;
-        HashMap<String,Entry> dic = new HashMap<String,Entry>();
-        try {
-            while(true) {
-                file.seek(ptr);
-                byte[] data = new byte[(int) SIZE];
-                file.readFully(data);
-                Entry entry = new Entry(new String(data));
-                if(entry.token != null) {
-                    dic.put(entry.token, entry);
-                }
-                ptr += SIZE;
+    private void closeJournal() throws IOException {
+        if(this.journal != null) {
+            this.journal.close();
+            this.journal = null;
+        }
+    }
+
+    /**
+     *  Appends the documents from the last one journaled up to lastDocID,
+     *  and the tombstones of the documents deleted since the last call and
+     *  of partialDocID if it is not -1, to the journal, and syncs it. A
+     *  document cut by a block is tombstoned so that a resumed build drops
+     *  its postings in the blocks and indexes it again; its record, written
+     *  once it is whole, revives it.
+     */
+    private void journalDocuments(int lastDocID, int partialDocID) throws IOException {
+        for(int docID=this.journaledDocID;docID<=lastDocID;++docID) {
+            String name = docNames.get(docID);
+            if(name == null) {
+                continue;
             }
+            File file = new File(name);
+            Integer length = docLengths.get(docID);
+            byte[] path = name.getBytes(StandardCharsets.UTF_8);
+            this.journal.writeInt(docID);
+            this.journal.writeInt(length != null ? length : 0);
+            this.journal.writeLong(file.length());
+            this.journal.writeLong(file.lastModified());
+            this.journal.writeInt(path.length);
+            this.journal.write(path);
+            this.journalLength += 28 + path.length;
         }
-        catch ( IOException e ) {
+        this.journaledDocID = Math.max(this.journaledDocID, lastDocID + 1);
+        for(int docID=deletedDocs.nextSetBit(0);docID>=0;docID=deletedDocs.nextSetBit(docID + 1)) {
+            if(!this.journaledDeletions.get(docID)) {
+                this.writeTombstone(docID);
+                this.journaledDeletions.set(docID);
+            }
         }
-        return dic;
+        if(partialDocID >= 0 && partialDocID != this.journaledPartialDocID) {
+            this.writeTombstone(partialDocID);
+            this.journaledPartialDocID = partialDocID;
+        }
+        this.journal.flush();
+        this.journalFile.getFD().sync();
     }
 
-    public int writeEntry(RandomAccessFile dictionary, RandomAccessFile data, String token, PostingsList list, long ptr) {
-        Entry entry = new Entry();
-        entry.token = token;
-        entry.location = ptr;
-        int size = this.writeData(data, list.toString(), ptr);
-        entry.size = size;
-
-        long hash = this.hash(token);
-        Entry bucket = readEntry(dictionary, hash);
+    private void writeTombstone(int docID) throws IOException {
+        this.journal.writeInt(docID);
+        this.journal.writeInt(DELETED);
+        this.journal.writeLong(0);
+        this.journal.writeLong(0);
+        this.journal.writeInt(0);
+        this.journalLength += 28;
+    }
 
-        while(bucket != null) {
-            hash += SIZE;
-            bucket = readEntry(dictionary, hash);
+    /**
+     *  Resumes the build which the last commit of the index directory left
+     *  unfinished, if any: checks its segments against their checksums,
+     *  hands them over to the merges, and puts the documents of its journal
+     *  in docNames and docLengths, and its tombstones in deletedDocs.
+     *  Returns the manifest of the documents which are not deleted,
+     *  whose files need not be indexed again, or null if there is no build
+     *  to resume or it cannot be resumed, in which case it starts over.
+     */
+    public Manifest resume() {
+        CommitPoint last;
+        try {
+            last = CommitPoint.read(indexDir());
+        } catch ( IOException e ) {
+            System.err.println( "Could not resume the build, it starts over: " + e.getMessage() );
+            return null;
         }
-
-        this.writeEntry(dictionary, entry, hash);
-        return size;
+        if(last == null || last.state != CommitPoint.BUILDING) {
+            return null;
+        }
+        Manifest manifest = new Manifest();
+        int maxDocID = -1;
+        try {
+            for(CommitPoint.Segment segment : last.segments.values()) {
+                File file = runFile(segment.name);
+                if(file.length() != segment.size || CommitPoint.checksum(file) != segment.checksum) {
+                    throw new IOException(file + " does not match its checksum");
+                }
+            }
+            File file = new File( INDEXDIR + "/" + JOURNAL_FNAME );
+            CRC32 checksum = new CRC32();
+            if(last.journalLength > 0 && CommitPoint.checksum(file, last.journalLength, checksum) != last.journalChecksum) {
+                throw new IOException(file + " does not match its checksum");
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), SortedRun.BUFFER_SIZE))) {
+                for(long read=0;read<last.journalLength;) {
+                    int docID = in.readInt();
+                    int length = in.readInt();
+                    long size = in.readLong();
+                    long modified = in.readLong();
+                    byte[] path = new byte[in.readInt()];
+                    in.readFully(path);
+                    String name = new String(path, StandardCharsets.UTF_8);
+                    if(length == DELETED) {
+                        // The postings of the document are left out of the index by the last merge.
+                        String deleted = docNames.remove(docID);
+                        docLengths.remove(docID);
+                        // The file may have been journaled again since, under a new docID.
+                        Manifest.FileInfo info = deleted != null ? manifest.get(deleted) : null;
+                        if(info != null && info.docID == docID) {
+                            manifest.remove(deleted);
+                        }
+                        deletedDocs.set(docID);
+                    } else {
+                        docNames.put(docID, name);
+                        docLengths.put(docID, length);
+                        manifest.put(name, docID, size, modified);
+                        // A document cut by a block, journaled once it was whole.
+                        deletedDocs.clear(docID);
+                    }
+                    maxDocID = Math.max(maxDocID, docID);
+                    read += 28 + path.length;
+                }
+            }
+            // Removes the segments written after the last commit.
+            File[] files = indexDir().listFiles();
+            for(int i=0;files!=null && i<files.length;++i) {
+                String name = files[i].getName();
+                if(name.startsWith(RUN_FNAME) && !last.segments.containsKey(name.substring(RUN_FNAME.length()))) {
+                    files[i].delete();
+                }
+            }
+            this.openJournal(checksum, last.journalLength);
+        } catch ( IOException e ) {
+            System.err.println( "Could not resume the build, it starts over: " + e.getMessage() );
+            docNames.clear();
+            docLengths.clear();
+            deletedDocs.clear();
+            return null;
+        }
+        this.commit = last;
+        this.journaledDeletions = (BitSet)deletedDocs.clone();
+        this.indexNumber = last.nextBlock;
+        this.journaledDocID = maxDocID + 1;
+        this.lastDocID = maxDocID;
+        System.err.println( "Resuming the build after block " + (last.nextBlock - 1) + ": "
+                            + last.segments.size() + " segments, " + manifest.paths().size() + " documents" );
+        return manifest;
     }
 
-    public int writeData(RandomAccessFile file, String dataString, long ptr) {
-        try {
-            file.seek(ptr);
-            byte[] data = dataString.getBytes("UTF-8");
-            file.write(data);
-            return data.length;
+    /**
+     *  The terms of the segments of a build in progress, for the k-gram
+     *  index of a resumed build, or those of the index if no build is.
+     */
+    public LinkedHashSet<String> terms() throws IOException {
+        if(commit == null || commit.state != CommitPoint.BUILDING) {
+            return super.terms();
         }
-        catch ( IOException e ) {
-            e.printStackTrace();
-            return -1;
+        ArrayList<String> segments;
+        synchronized(commit) {
+            segments = new ArrayList<String>(commit.segments.keySet());
+        }
+        LinkedHashSet<String> terms = new LinkedHashSet<String>();
+        for(String segment : segments) {
+            try (SortedRun.Reader in = new SortedRun.Reader(runFile(segment))) {
+                while(in.next()) {
+                    terms.add(in.term);
+                }
+            }
         }
+        return terms;
     }
 
-    public String readData(RandomAccessFile file, long ptr, int size) {
-        try {
-            file.seek(ptr);
-            byte[] data = new byte[size];
-            file.readFully(data);
-            return new String(data);
+    /**
+     *  Merges segments into a new segment named target in one pass: the
+     *  postings lists of a term in all the segments are merged and written
+     *  once. The new segment is committed in place of the others, which are
+     *  removed afterwards.
+     *
+     *  If target is INDEX_SEGMENT, the files of the index and of the
+     *  documents are written with CommitPoint.NEW_SUFFIX, without the
+     *  postings of the deleted documents and with the bounds of the lists
+     *  computed again with the current norms, and installed.
+     *
+     *  @return The size of the postings and terms written.
+     */
+    public long mergeIndex(List<String> segments, String target) throws IOException {
+        System.out.println("Merge blocks " + segments + " into " + (target.equals(INDEX_SEGMENT) ? "the index" : target) + "...");
+        ArrayList<File> runs = new ArrayList<File>();
+        for(String segment : segments) {
+            runs.add(runFile(segment));
         }
-        catch ( IOException e ) {
-            e.printStackTrace();
-            return null;
+        long size;
+        if(target.equals(INDEX_SEGMENT)) {
+            try (SequentialWriter out = new SequentialWriter(CommitPoint.NEW_SUFFIX)) {
+                SortedRun.merge(runs, out, deletedDocs);
+            }
+            DocumentStore.write(new File( INDEXDIR + "/" + DOCINFO_FNAME + CommitPoint.NEW_SUFFIX ), docNames, docLengths);
+            size = new File( INDEXDIR + "/" + DATA_FNAME + CommitPoint.NEW_SUFFIX ).length()
+                + new File( INDEXDIR + "/" + TERMS_FNAME + CommitPoint.NEW_SUFFIX ).length();
+            this.install();
+        } else {
+            SortedRun.Writer out = new SortedRun.Writer(runFile(target));
+            try {
+                SortedRun.merge(runs, out, null);
+            } finally {
+                out.close();
+            }
+            size = runFile(target).length();
+            synchronized(this.commit) {
+                int level = 0;
+                for(String segment : segments) {
+                    level = Math.max(level, this.commit.segments.remove(segment).level + 1);
+                }
+                this.commit.segments.put(target, new CommitPoint.Segment(target, level, size, out.checksum()));
+                this.commit.write(indexDir());
+            }
+            for(File run : runs) {
+                run.delete();
+            }
         }
+        System.out.println("Merge blocks " + segments + " finished");
+        return size;
     }
 
-    public void writeEntry(RandomAccessFile file, Entry entry, long ptr) {
+    /**
+     *  Commits the files of the index written with CommitPoint.NEW_SUFFIX,
+     *  moves them over those of the index, and opens them.
+     */
+    private void install() throws IOException {
+        synchronized(this.commit) {
+            this.commit.recordNewFiles(indexDir());
+            this.commit.state = CommitPoint.INSTALLING;
+            this.commit.write(indexDir());
+        }
+        this.closeJournal();
+        dictionaryFile.close();
+        dataFile.close();
+        termsFile.close();
+        documents.close();
         try {
-            file.seek(ptr);
-            byte[] data = entry.toString().getBytes("UTF-8");
-            file.write(data);
-        } catch ( IOException e ) {
-            e.printStackTrace();
+            this.commit.install(indexDir());
+        } finally {
+            dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME, "rw" );
+            dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "rw" );
+            termsFile = new RandomAccessFile( INDEXDIR + "/" + TERMS_FNAME, "rw" );
+            readDocInfo();
         }
     }
 
-    public Entry readEntry(RandomAccessFile file, long ptr) {
-        try{
-            file.seek(ptr);
-            byte[] data = new byte[(int) SIZE];
-            file.readFully(data);
-            Entry entry = new Entry(new String(data));
-            if(entry.token != null) {
-                return entry;
-            } else {
-                return null;
+    /**
+     *  Writes the last block, waits for the merges and merges the segments
+     *  left into the index.
+     */
+    public void cleanup() {
+        if(index.size() > 0) {
+            // Every document is in a block once the last one is written.
+            int maxDocID = this.lastDocID;
+            for(Integer docID : docNames.keySet()) {
+                maxDocID = Math.max(maxDocID, docID);
             }
-        } catch(EOFException e){
-            return null;
-        } catch ( IOException e ) {
+            this.writeBlock(maxDocID, -1);
+        } else {
+            this.commitDeletions();
+        }
+        // The final merge computes the bounds of the lists with the lengths of all the documents.
+        norms.compute(docNames.size(), docLengths);
+        finish();
+    }
+
+    public void finish() {
+        if(this.flushedBlocks > 0) {
+            System.out.println(String.format("%d blocks of %.1f MB in memory on average (budget %.1f MB), %.1f MB written in %d ms",
+                                             this.flushedBlocks, this.flushedBlockBytes / 1e6 / this.flushedBlocks, this.blockBudget / 1e6,
+                                             this.flushedDiskBytes / 1e6, this.flushNanos / 1000000));
+        }
+        try {
+            if(commit != null && scheduler().finish(INDEX_SEGMENT)) {
+                if(cache != null) {
+                    cache.clear();
+                }
+            }
+        } catch (IOException e) {
             e.printStackTrace();
         }
-        return null;
+        commit = null;
+        scheduler = null;
+        System.out.println( "done!" );
     }
 
     public void removeFile(String path) {
@@ -352,16 +599,6 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex {
     	}
     }
 
-    public void renameFile(String path, String newPath) {
-        try {
-            File file = new File(path);
-            File file2 = new File(newPath);
-            file.renameTo(file2);
-        } catch(Exception e) {
-            e.printStackTrace();
-        }
-    }
-
     public ArrayList<String> getTermFromDocument(Integer docID) {
             ArrayList<String> terms = new ArrayList<String>();
             for(String token : index.keySet()) {
@@ -0,0 +1,324 @@
+package ir;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *  A cache of decoded postings lists bounded in bytes, put in front of an
+ *  index on disk.
+ *
+ *  The eviction policy is W-TinyLFU: a new list first enters a small LRU
+ *  window (1% of the capacity). The lists pushed out of the window enter
+ *  the main LRU segment only if their term has been asked for more often
+ *  than the term of the main segment they would evict. The frequencies are
+ *  estimated by a count-min sketch whose counters saturate at 15 and are
+ *  halved periodically, so a term read once by a scan never pushes out a
+ *  term that every query uses, and old popularity fades.
+ *
+ *  A lookup does not lock: the lists cached are in a concurrent map, and
+ *  the request is only written down in one of a few read buffers, chosen
+ *  by thread. The requests buffered are counted in the sketch and move
+ *  their list up the LRU order when a buffer fills, by whichever thread
+ *  gets the lock of the policy then; a request which finds its buffer
+ *  full while another thread drains is dropped, which only makes the
+ *  frequencies a little lower. put and the other methods take the lock.
+ *  The lists returned are shared between the callers and must not be
+ *  modified.
+ */
+public class PostingsCache {
+
+    /** Number of rows of the count-min sketch. */
+    static final int DEPTH = 4;
+
+    /** Largest value of a counter of the sketch. */
+    static final int MAX_COUNT = 15;
+
+    /** Number of requests a read buffer holds, a power of two. */
+    static final int BUFFER_SIZE = 64;
+
+    /** Number of requests in a buffer from which a lookup tries to drain the buffers. */
+    static final int DRAIN_THRESHOLD = BUFFER_SIZE / 2;
+
+    private final long maxBytes;
+    private final long windowMaxBytes;
+    private long windowBytes = 0;
+    private long mainBytes = 0;
+
+    /** A cached list with its size when it was cached. */
+    private static class Node {
+        final PostingsList list;
+        final long bytes;
+
+        Node(PostingsList list) {
+            this.list = list;
+            this.bytes = list.memorySize();
+        }
+    }
+
+    /** Every list cached, in the window or in the main segment, for the lookups. */
+    private final ConcurrentHashMap<String,Node> lists = new ConcurrentHashMap<String,Node>();
+
+    /** Guards the policy: the window, the main segment, the sketch and the read buffers drained. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     *  The requests of the lookups not counted yet. A buffer holds the
+     *  requests number reads to writes - 1, each at its number modulo
+     *  BUFFER_SIZE; only the thread which holds the lock reads them.
+     */
+    private static class ReadBuffer {
+        final AtomicReferenceArray<String> tokens = new AtomicReferenceArray<String>(BUFFER_SIZE);
+        final AtomicLong writes = new AtomicLong();
+        volatile long reads = 0;
+
+        /** Writes a request down, and returns the number of requests buffered, or -1 if it is full. */
+        int offer(String token) {
+            long write = this.writes.get();
+            long buffered = write - this.reads;
+            if(buffered >= BUFFER_SIZE || !this.writes.compareAndSet(write, write + 1)) {
+                return -1;
+            }
+            this.tokens.lazySet((int)(write & (BUFFER_SIZE - 1)), token);
+            return (int)buffered + 1;
+        }
+    }
+
+    private final ReadBuffer[] buffers;
+
+    /** The window and the main segment, both in LRU order (eldest first). */
+    private final LinkedHashMap<String,Node> window = new LinkedHashMap<String,Node>(16, 0.75f, true);
+    private final LinkedHashMap<String,Node> main = new LinkedHashMap<String,Node>(16, 0.75f, true);
+
+    /** The counters of the sketch, DEPTH rows of width counters. */
+    private final byte[] sketch;
+    private final int width;
+
+    /** Number of increments of the sketch since it was last halved. */
+    private int additions = 0;
+    private final int sampleSize;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long evictions = 0;
+
+    /** Creates a cache holding at most maxBytes of postings lists. */
+    public PostingsCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.windowMaxBytes = Math.max(maxBytes / 100, 1);
+        // About one counter per kilobyte cached, at least 1024 and a power of two.
+        long counters = Math.max(1024, Math.min(1 << 24, maxBytes / 1024));
+        this.width = Integer.highestOneBit((int)counters);
+        this.sketch = new byte[DEPTH * this.width];
+        this.sampleSize = 10 * this.width;
+        // A power of two, about four buffers per processor.
+        this.buffers = new ReadBuffer[Integer.highestOneBit(4 * Runtime.getRuntime().availableProcessors() - 1) << 1];
+        for(int i=0;i<this.buffers.length;++i) {
+            this.buffers[i] = new ReadBuffer();
+        }
+    }
+
+    /** Returns the cached list of a term, or null if it is not cached, without locking. */
+    public PostingsList get(String token) {
+        Node node = this.lists.get(token);
+        if(node != null) {
+            this.hits.increment();
+        } else {
+            this.misses.increment();
+        }
+        long id = Thread.currentThread().getId();
+        ReadBuffer buffer = this.buffers[(int)(id ^ (id >>> 16)) & (this.buffers.length - 1)];
+        int buffered = buffer.offer(token);
+        if((buffered < 0 || buffered >= DRAIN_THRESHOLD) && this.lock.tryLock()) {
+            try {
+                this.drain();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+        return node != null ? node.list : null;
+    }
+
+    /** Counts the requests buffered and moves their lists up the LRU order. Needs the lock. */
+    private void drain() {
+        for(ReadBuffer buffer : this.buffers) {
+            long read = buffer.reads;
+            long writes = buffer.writes.get();
+            for(;read<writes;++read) {
+                int i = (int)(read & (BUFFER_SIZE - 1));
+                String token = buffer.tokens.get(i);
+                if(token == null) {
+                    // Its writer has the slot but has not written it yet.
+                    break;
+                }
+                buffer.tokens.lazySet(i, null);
+                this.increment(token);
+                if(this.window.get(token) == null) {
+                    this.main.get(token);
+                }
+            }
+            buffer.reads = read;
+        }
+    }
+
+    /** Adds the list of a term which has just been read from disk. */
+    public void put(String token, PostingsList list) {
+        Node node = new Node(list);
+        if(node.bytes > this.maxBytes - this.windowMaxBytes) {
+            return;
+        }
+        this.lock.lock();
+        try {
+            this.drain();
+            if(this.lists.containsKey(token)) {
+                return;
+            }
+            this.window.put(token, node);
+            this.lists.put(token, node);
+            this.windowBytes += node.bytes;
+            while(this.windowBytes > this.windowMaxBytes) {
+                Iterator<Map.Entry<String,Node>> it = this.window.entrySet().iterator();
+                Map.Entry<String,Node> candidate = it.next();
+                it.remove();
+                this.windowBytes -= candidate.getValue().bytes;
+                this.admit(candidate.getKey(), candidate.getValue());
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     *  Moves a list out of the window into the main segment if it is more
+     *  frequent than each of the least recently used lists of the main
+     *  segment it would evict, which are then evicted. Otherwise the
+     *  candidate itself is evicted, and the main segment is left as it is.
+     */
+    private void admit(String token, Node node) {
+        int frequency = this.frequency(token);
+        long room = this.maxBytes - this.windowMaxBytes - node.bytes;
+        // The victims are the first lists of the LRU order, until the candidate fits.
+        int victims = 0;
+        long bytes = this.mainBytes;
+        Iterator<Map.Entry<String,Node>> it = this.main.entrySet().iterator();
+        while(bytes > room) {
+            Map.Entry<String,Node> victim = it.next();
+            if(frequency <= this.frequency(victim.getKey())) {
+                this.lists.remove(token);
+                this.evictions++;
+                return;
+            }
+            bytes -= victim.getValue().bytes;
+            victims++;
+        }
+        it = this.main.entrySet().iterator();
+        for(int i=0;i<victims;++i) {
+            Map.Entry<String,Node> victim = it.next();
+            this.mainBytes -= victim.getValue().bytes;
+            this.lists.remove(victim.getKey());
+            it.remove();
+            this.evictions++;
+        }
+        this.main.put(token, node);
+        this.mainBytes += node.bytes;
+    }
+
+    /** Empties the cache, when the index files change. */
+    public void clear() {
+        this.lock.lock();
+        try {
+            this.window.clear();
+            this.main.clear();
+            this.lists.clear();
+            this.windowBytes = 0;
+            this.mainBytes = 0;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public long hits() {
+        return this.hits.sum();
+    }
+
+    public long misses() {
+        return this.misses.sum();
+    }
+
+    public long evictions() {
+        this.lock.lock();
+        try {
+            return this.evictions;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** Number of bytes of postings lists currently cached. */
+    public long bytes() {
+        this.lock.lock();
+        try {
+            return this.windowBytes + this.mainBytes;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public String toString() {
+        long hits = this.hits();
+        long misses = this.misses();
+        long requests = hits + misses;
+        this.lock.lock();
+        try {
+            return String.format("%d hits, %d misses (%.1f%% hits), %d evictions, %d lists, %d/%d bytes",
+                                 hits, misses, requests > 0 ? 100.0 * hits / requests : 0.0,
+                                 this.evictions, this.window.size() + this.main.size(), this.windowBytes + this.mainBytes, this.maxBytes);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // ==================================================================
+    //
+    //  Count-min sketch.
+
+    /** Place of the counter of a term in a row of the sketch. */
+    private int index(int hash, int row) {
+        int h = hash * (0x9E3779B9 + 2 * row + 1);
+        h ^= h >>> 16;
+        return row * this.width + (h & (this.width - 1));
+    }
+
+    /** Counts one more request of a term. */
+    private void increment(String token) {
+        int hash = token.hashCode();
+        for(int row=0;row<DEPTH;++row) {
+            int i = this.index(hash, row);
+            if(this.sketch[i] < MAX_COUNT) {
+                this.sketch[i]++;
+            }
+        }
+        if(++this.additions == this.sampleSize) {
+            // Aging: halve every counter so that the frequencies follow the recent queries.
+            for(int i=0;i<this.sketch.length;++i) {
+                this.sketch[i] >>= 1;
+            }
+            this.additions /= 2;
+        }
+    }
+
+    /** Estimated number of recent requests of a term. */
+    private int frequency(String token) {
+        int hash = token.hashCode();
+        int frequency = MAX_COUNT;
+        for(int row=0;row<DEPTH;++row) {
+            frequency = Math.min(frequency, this.sketch[this.index(hash, row)]);
+        }
+        return frequency;
+    }
+}
@@ -0,0 +1,181 @@
+package ir;
+
+import java.nio.ByteBuffer;
+
+/**
+ *   Binary on-disk format of a postings list.
+ *
+ *   A list is written as
+ *
+ *     size, nbPositions, skip step, then for each block of skip step postings:
+ *     last docID gap, block length in bytes, score bound, then for each posting:
+ *     docID gap, tf, tf position gaps
+ *
+ *   where every number is variable-byte encoded: 7 bits per byte, the
+ *   high bit being set on every byte but the last one. DocIDs are coded
+ *   as the difference with the previous docID, positions as the
+ *   difference with the previous position in the same document. Scores
+ *   are computed at query time and are not stored, but the score bound of
+ *   a block is the bits of the float just above the largest tf / document
+ *   length of its postings (see PostingsList.getBlockBounds), which lets
+ *   a ranked search skip the blocks which cannot lift a document into the
+ *   best results.
+ *
+ *   The block headers are the on-disk skip pointers: the last docID of a
+ *   block and its length let a reader jump over the blocks which cannot
+ *   contain the documents it is looking for without decoding them.
+ */
+public class PostingsCodec {
+
+    /** Encodes a postings list. */
+    public static byte[] encode(PostingsList list) {
+        int nbPositions = 0;
+        for(int i=0;i<list.size();++i) {
+            nbPositions += list.getFrequency(i);
+        }
+        int step = list.skipStep();
+        int nbBlocks = (list.size() + step - 1) / step;
+        float[] bounds = list.getBlockBounds();
+        // At most 5 bytes per int.
+        byte[] out = new byte[5 * (3 + 3 * nbBlocks + 2 * list.size() + nbPositions)];
+        byte[] block = new byte[5 * (2 * step + nbPositions)];
+        int p = writeVByte(out, 0, list.size());
+        p = writeVByte(out, p, nbPositions);
+        p = writeVByte(out, p, step);
+        int lastDocID = 0;
+        for(int start=0;start<list.size();start+=step) {
+            int end = Math.min(start + step, list.size());
+            int b = 0;
+            int blockLastDocID = lastDocID;
+            for(int i=start;i<end;++i) {
+                b = writeVByte(block, b, list.getDocID(i) - blockLastDocID);
+                blockLastDocID = list.getDocID(i);
+                int tf = list.getFrequency(i);
+                b = writeVByte(block, b, tf);
+                int lastPosition = 0;
+                for(int j=0;j<tf;++j) {
+                    b = writeVByte(block, b, list.getPosition(i, j) - lastPosition);
+                    lastPosition = list.getPosition(i, j);
+                }
+            }
+            p = writeVByte(out, p, blockLastDocID - lastDocID);
+            p = writeVByte(out, p, b);
+            p = writeVByte(out, p, Float.floatToIntBits(bounds[start / step]));
+            System.arraycopy(block, 0, out, p, b);
+            p += b;
+            lastDocID = blockLastDocID;
+        }
+        byte[] data = new byte[p];
+        System.arraycopy(out, 0, data, 0, p);
+        return data;
+    }
+
+    /** Decodes a postings list from the bytes [offset, offset+length[ of data. */
+    public static PostingsList decode(byte[] data, int offset, int length) {
+        return decode(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /** Decodes a postings list starting at the position of the buffer. */
+    public static PostingsList decode(ByteBuffer in) {
+        int size = readVByte(in);
+        int nbPositions = readVByte(in);
+        int step = readVByte(in);
+        int[] docIDs = new int[Math.max(size, 1)];
+        int[] offsets = new int[docIDs.length + 1];
+        int[] positions = new int[Math.max(nbPositions, 1)];
+        float[] bounds = new float[(size + step - 1) / step];
+        int docID = 0;
+        int p = 0;
+        for(int i=0;i<size;++i) {
+            if(i % step == 0) {
+                // Block header, only its score bound is needed when reading everything.
+                readVByte(in);
+                readVByte(in);
+                bounds[i / step] = Float.intBitsToFloat(readVByte(in));
+            }
+            docID += readVByte(in);
+            docIDs[i] = docID;
+            offsets[i] = p;
+            int tf = readVByte(in);
+            int position = 0;
+            for(int j=0;j<tf;++j) {
+                position += readVByte(in);
+                positions[p++] = position;
+            }
+        }
+        offsets[size] = p;
+        PostingsList list = new PostingsList(docIDs, offsets, positions, size);
+        list.setBlockBounds(bounds);
+        return list;
+    }
+
+    /**
+     *  Decodes only the blocks of a postings list which may hold one of the
+     *  documents of candidates, and jumps over the others. The result is
+     *  a sub-list which contains every posting of the full list whose
+     *  docID is in candidates.
+     */
+    public static PostingsList decode(ByteBuffer in, PostingsList candidates) {
+        int size = readVByte(in);
+        int nbPositions = readVByte(in);
+        int step = readVByte(in);
+        int[] docIDs = new int[Math.max(Math.min(size, candidates.size() * step), 1)];
+        int[] offsets = new int[docIDs.length + 1];
+        int[] positions = new int[Math.max(nbPositions, 1)];
+        int n = 0;
+        int p = 0;
+        int lastDocID = 0;
+        int c = 0;
+        for(int start=0;start<size && c<candidates.size();start+=step) {
+            int blockLastDocID = lastDocID + readVByte(in);
+            int length = readVByte(in);
+            // The score bound, of no use for an intersection.
+            readVByte(in);
+            c = candidates.skipTo(c, lastDocID + 1);
+            if(c < candidates.size() && candidates.getDocID(c) <= blockLastDocID) {
+                int docID = lastDocID;
+                int end = Math.min(start + step, size);
+                for(int i=start;i<end;++i) {
+                    docID += readVByte(in);
+                    docIDs[n] = docID;
+                    offsets[n] = p;
+                    n++;
+                    int tf = readVByte(in);
+                    int position = 0;
+                    for(int j=0;j<tf;++j) {
+                        position += readVByte(in);
+                        positions[p++] = position;
+                    }
+                }
+            } else {
+                in.position(in.position() + length);
+            }
+            lastDocID = blockLastDocID;
+        }
+        offsets[n] = p;
+        return new PostingsList(docIDs, offsets, positions, n);
+    }
+
+    /** Writes a non-negative int at out[p], returns the position after it. */
+    static int writeVByte(byte[] out, int p, int value) {
+        while((value & ~0x7F) != 0) {
+            out[p++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[p++] = (byte)value;
+        return p;
+    }
+
+    /** Reads a variable-byte int from the buffer. */
+    static int readVByte(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -7,68 +7,78 @@
 
 package ir;
 
-import java.util.HashMap;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.StringTokenizer;
+import java.util.Arrays;
 import java.io.Serializable;
 
 public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
 
     public int docID = 0;
     public double score = 0;
-    public ArrayList<Integer> positions;
+
+    /** The sorted positions of the term in the document (only the first nbPositions are used). */
+    public int[] positions;
+    public int nbPositions = 0;
 
     public PostingsEntry(int docID, double score) {
         this.docID = docID;
         this.score = score;
-        this.positions = new ArrayList<Integer>();
+        this.positions = new int[1];
+    }
+
+    /** Creates an entry holding a copy of positions[from..to[. */
+    public PostingsEntry(int docID, double score, int[] positions, int from, int to) {
+        this.docID = docID;
+        this.score = score;
+        this.positions = Arrays.copyOfRange(positions, from, Math.max(to, from + 1));
+        this.nbPositions = to - from;
     }
 
     public PostingsEntry(String s) {
-        this.positions = new ArrayList<Integer>();
         String[] elts = s.split(";");
         this.docID = Integer.parseInt(elts[0]);
         elts = elts[1].split("\\[");
         this.score = Double.parseDouble(elts[0]);
         String[] pos = elts[1].split(",");
+        this.positions = new int[pos.length];
         for(int i=0;i<pos.length;++i) {
-            this.positions.add(Integer.parseInt(pos[i]));
+            this.positions[i] = Integer.parseInt(pos[i]);
         }
+        this.nbPositions = pos.length;
     }
 
     public PostingsEntry(PostingsEntry copy) {
         this.docID = copy.docID;
         this.score = copy.score;
-        this.positions = new ArrayList<Integer>(copy.positions);
+        this.positions = Arrays.copyOf(copy.positions, copy.positions.length);
+        this.nbPositions = copy.nbPositions;
+    }
+
+    public int getPosition(int i) {
+        return this.positions[i];
     }
 
     public void addPosition(int position) {
         this.insertPosition(position);
-        //this.positions.add(position);
     }
 
     public void insertPosition(int position) {
-        int start = 0;
-        int end = this.positions.size() - 1;
-        int i;
-        while(end >= start){
-            i = (start + end)/2;
-            if(this.positions.get(i) == position) {
-                return;
-            } else if(position > this.positions.get(i)) {
-                start = i+1;
-            } else {
-                end = i-1;
-            }
+        int i = Arrays.binarySearch(this.positions, 0, this.nbPositions, position);
+        if(i >= 0) {
+            return;
+        }
+        i = -i - 1;
+        if(this.nbPositions == this.positions.length) {
+            this.positions = Arrays.copyOf(this.positions, this.positions.length * 2);
         }
-        this.positions.add(start,position);
+        System.arraycopy(this.positions, i, this.positions, i + 1, this.nbPositions - i);
+        this.positions[i] = position;
+        this.nbPositions++;
     }
 
     public void merge(PostingsEntry entry) {
         if(this.docID == entry.docID) {
-            for(int i=0;i<entry.positions.size();++i) {
-                this.insertPosition(entry.positions.get(i));
+            for(int i=0;i<entry.nbPositions;++i) {
+                this.insertPosition(entry.positions[i]);
             }
         }
     }
@@ -91,18 +101,18 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
 
 
     public String toString() {
-        String s = "";
-        s += Integer.toString(this.docID) + ";";
-        s += Double.toString(this.score);
-        s += "[";
-        for(int i=0;i<this.positions.size();++i) {
-            s += Integer.toString(this.positions.get(i));
-            if(i < this.positions.size()-1) {
-                s += ",";
+        StringBuilder s = new StringBuilder();
+        s.append(this.docID).append(';');
+        s.append(this.score);
+        s.append('[');
+        for(int i=0;i<this.nbPositions;++i) {
+            s.append(this.positions[i]);
+            if(i < this.nbPositions-1) {
+                s.append(',');
             }
         }
-        s += "]";
-        return s;
+        s.append(']');
+        return s.toString();
     }
 
     // tf = [# occurrences of t in d],
@@ -111,9 +121,7 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
     // idf = ln(N/df)
     // len = [# words in d].
     public void computeScore(double idf, int len) {
-        int tf = this.positions.size();
-        // System.out.println("TF : " + Integer.toString(tf));
-        // System.out.println("1+ln(TF) : " + Double.toString(1+Math.log10((double)tf)));
+        int tf = this.nbPositions;
         double tf_idf = (double)tf * idf / (double)len;
         this.score = tf_idf;
     }
@@ -8,142 +8,636 @@
 package ir;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.List;
 
+/**
+*  A postings list stored as parallel primitive arrays.
+*
+*  The i-th posting has docID docIDs[i] and its positions are
+*  positions[offsets[i]..offsets[i+1][, so the index holds no
+*  boxed Integer and no object per posting.
+*/
 public class PostingsList {
 
-    /** The postings list */
-    public ArrayList<PostingsEntry> list = new ArrayList<PostingsEntry>();
+    private static final int INITIAL_CAPACITY = 2;
 
-    public PostingsList() {
+    /** The docIDs of the postings, in increasing order. */
+    private int[] docIDs;
+
+    /** The scores of the postings, allocated on the first non-zero score. */
+    private double[] scores = null;
+
+    /** Start of the positions of each posting in positions (size+1 values). */
+    private int[] offsets;
+
+    /** The positions of all the postings, one block per posting. */
+    private int[] positions;
+
+    /** Number of postings in this list. */
+    private int size = 0;
 
+    /** Number of matching documents when this list only holds the best ones, or -1. */
+    private int totalHits = -1;
+
+    /**
+    *  For each block of skipStep() postings, a float just above the largest
+    *  tf / document length of its postings, or null until it is computed.
+    *  Times the idf and the weight of the term, it bounds the tf-idf score
+    *  of every posting of the block. The array is never modified, a change
+    *  of the postings drops it.
+    */
+    private volatile float[] blockBounds = null;
+
+    public PostingsList() {
+        this.docIDs = new int[INITIAL_CAPACITY];
+        this.offsets = new int[INITIAL_CAPACITY + 1];
+        this.positions = new int[INITIAL_CAPACITY];
     }
 
     public PostingsList(PostingsList copy) {
-        this.list = new ArrayList<PostingsEntry>(copy.list);
+        this.size = copy.size;
+        this.docIDs = Arrays.copyOf(copy.docIDs, Math.max(copy.size, 1));
+        this.offsets = Arrays.copyOf(copy.offsets, this.docIDs.length + 1);
+        this.positions = Arrays.copyOf(copy.positions, Math.max(copy.offsets[copy.size], 1));
+        if(copy.scores != null) {
+            this.scores = Arrays.copyOf(copy.scores, Math.max(copy.size, 1));
+        }
+        this.totalHits = copy.totalHits;
+        this.blockBounds = copy.blockBounds;
+    }
+
+    /** Wraps already sorted arrays (offsets must hold docIDs.length+1 values). */
+    PostingsList(int[] docIDs, int[] offsets, int[] positions, int size) {
+        this.docIDs = docIDs;
+        this.offsets = offsets;
+        this.positions = positions;
+        this.size = size;
     }
 
     public PostingsList(String s) {
+        this();
         String[] docs = s.split("]");
         for(int i=0;i<docs.length;++i) {
-            list.add(new PostingsEntry(docs[i]));
+            this.add(new PostingsEntry(docs[i]));
         }
     }
 
     /** Number of postings in this list. */
     public int size() {
-        return list.size();
+        return this.size;
+    }
+
+    /**
+    *  Number of documents matching the query this list answers, which is
+    *  more than size() when the list only holds the best ranked ones.
+    */
+    public int getTotalHits() {
+        return this.totalHits >= 0 ? this.totalHits : this.size;
+    }
+
+    public void setTotalHits(int totalHits) {
+        this.totalHits = totalHits;
+    }
+
+    /**
+    *  Returns the score bounds of the blocks of the list (see blockBounds),
+    *  computed on the first call with the lengths of Index.docLength. A
+    *  document counts as at least tf words long, since every occurrence of
+    *  the term is one of its words, so no bound is above 1.
+    */
+    public float[] getBlockBounds() {
+        float[] bounds = this.blockBounds;
+        if(bounds == null) {
+            double[] ratios = new double[this.size];
+            for(int i=0;i<this.size;++i) {
+                int tf = this.getFrequency(i);
+                ratios[i] = (double)tf / Math.max(Index.docLength(this.docIDs[i]), tf);
+            }
+            bounds = this.blockMaxima(ratios);
+            this.blockBounds = bounds;
+        }
+        return bounds;
+    }
+
+    /** Sets the score bounds of the blocks, as read from the disk. */
+    void setBlockBounds(float[] bounds) {
+        this.blockBounds = bounds;
+    }
+
+    /** Drops the score bounds of the blocks after a change of the postings. */
+    private void dropBlockBounds() {
+        if(this.blockBounds != null) {
+            this.blockBounds = null;
+        }
+    }
+
+    /**
+    *  The largest of bounds for each block of skipStep() postings, where
+    *  bounds[i] bounds the tf / document length of the ith posting, rounded
+    *  up to a float.
+    */
+    private float[] blockMaxima(double[] bounds) {
+        int step = this.skipStep();
+        float[] maxima = new float[(this.size + step - 1) / step];
+        for(int b=0;b<maxima.length;++b) {
+            double max = 0;
+            for(int i=b*step;i<Math.min((b + 1) * step, this.size);++i) {
+                max = Math.max(max, bounds[i]);
+            }
+            maxima[b] = Math.min(Math.nextUp((float)max), 1f);
+        }
+        return maxima;
+    }
+
+    /** The score bound of the block of the ith posting, in blockBounds of this list. */
+    private double postingBound(float[] bounds, int i) {
+        return bounds[i / this.skipStep()];
     }
 
     /** Returns the ith posting. */
     public PostingsEntry get(int i) {
-        return list.get( i );
+        return new PostingsEntry(this.docIDs[i], this.getScore(i), this.positions, this.offsets[i], this.offsets[i+1]);
+    }
+
+    public int getDocID(int i) {
+        return this.docIDs[i];
+    }
+
+    public double getScore(int i) {
+        return this.scores == null ? 0 : this.scores[i];
+    }
+
+    public void setScore(int i, double score) {
+        if(this.scores == null) {
+            if(score == 0) {
+                return;
+            }
+            this.scores = new double[this.docIDs.length];
+        }
+        this.scores[i] = score;
+    }
+
+    /** Number of positions (term frequency) of the ith posting. */
+    public int getFrequency(int i) {
+        return this.offsets[i+1] - this.offsets[i];
+    }
+
+    /** Returns the jth position of the ith posting. */
+    public int getPosition(int i, int j) {
+        return this.positions[this.offsets[i] + j];
+    }
+
+    /**
+    *  Returns the index of the posting of docID, or (-(insertion point) - 1)
+    *  if there is none.
+    */
+    public int indexOf(int docID) {
+        return Arrays.binarySearch(this.docIDs, 0, this.size, docID);
+    }
+
+    /**
+    *  Distance between two skip pointers: the list is cut in about sqrt(size)
+    *  blocks of sqrt(size) postings.
+    */
+    public int skipStep() {
+        return Math.max(1, (int)Math.sqrt(this.size));
+    }
+
+    /**
+    *  Returns the first index j >= i whose docID is >= docID (or size() if
+    *  there is none), following the skip pointers while they do not jump
+    *  past docID before walking the rest one posting at a time.
+    */
+    public int skipTo(int i, int docID) {
+        if(i >= this.size || this.docIDs[i] >= docID) {
+            return i;
+        }
+        int step = this.skipStep();
+        while(i + step < this.size && this.docIDs[i + step] <= docID) {
+            i += step;
+        }
+        while(i < this.size && this.docIDs[i] < docID) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+    *  Returns the first index j >= i whose docID is >= docID (or size() if
+    *  there is none), with an exponential search from i followed by a
+    *  binary search in the last range: O(log(j-i)) instead of O(j-i).
+    */
+    public int gallopTo(int i, int docID) {
+        if(i >= this.size || this.docIDs[i] >= docID) {
+            return i;
+        }
+        int low = i;
+        int bound = 1;
+        while(i + bound < this.size && this.docIDs[i + bound] < docID) {
+            low = i + bound;
+            bound *= 2;
+        }
+        int j = Arrays.binarySearch(this.docIDs, low + 1, Math.min(i + bound + 1, this.size), docID);
+        return j >= 0 ? j : -j - 1;
     }
 
     public PostingsEntry getEntry(int docID) {
-        int start = 0;
-        int end = this.list.size()-1;
-        int i;
-        while(end >= start) {
-            i = (start + end)/2;
-            if(this.list.get(i).docID == docID) {
-                return this.list.get(i);
-            } else if(docID > this.list.get(i).docID) {
-                start = i+1;
+        int i = this.indexOf(docID);
+        return i >= 0 ? this.get(i) : null;
+    }
+
+    /** Add a new position at the good place to preserve the list sorted **/
+    public void add( int docID, double score, int position ) {
+        this.dropBlockBounds();
+        int i = this.indexOf(docID);
+        if(i < 0) {
+            i = -i - 1;
+            this.insertPosting(i, docID, score);
+        }
+        this.insertPosition(i, position);
+    }
+
+    /**
+    *  Adds a position while the index is being built. The indexer hands out
+    *  docIDs and offsets in increasing order, so in the common case the
+    *  posting goes at the end of the list in O(1); anything out of order
+    *  falls back to the sorted insert of add().
+    */
+    public void append( int docID, int position ) {
+        this.dropBlockBounds();
+        if(this.size == 0 || docID > this.docIDs[this.size-1]) {
+            if(this.size == this.docIDs.length) {
+                this.insertPosting(this.size, docID, 0);
             } else {
-                end = i-1;
+                this.docIDs[this.size] = docID;
+                this.size++;
+                this.offsets[this.size] = this.offsets[this.size-1];
+                if(this.scores != null) {
+                    this.scores[this.size-1] = 0;
+                }
             }
+        } else if(docID < this.docIDs[this.size-1]
+                  || (this.offsets[this.size] > this.offsets[this.size-1] && position <= this.positions[this.offsets[this.size]-1])) {
+            this.add(docID, 0, position);
+            return;
+        }
+        int end = this.offsets[this.size];
+        if(end == this.positions.length) {
+            this.positions = Arrays.copyOf(this.positions, this.positions.length * 2);
         }
-        return null;
+        this.positions[end] = position;
+        this.offsets[this.size] = end + 1;
     }
 
-    /** Add a new entry at the good position to preserve the list sorted **/
-    public PostingsEntry add( int docID, double score, int position ) {
-        PostingsEntry entry = this.add(new PostingsEntry(docID, score));
-        entry.addPosition(position);
-        return entry;
+    /**
+    *  Appends a copy of the ith posting of list, in O(1) if its docID is
+    *  greater than the last docID of this list.
+    */
+    public void append( PostingsList list, int i ) {
+        this.dropBlockBounds();
+        int docID = list.docIDs[i];
+        if(this.size > 0 && docID <= this.docIDs[this.size-1]) {
+            this.add(list.get(i));
+            return;
+        }
+        int n = list.offsets[i+1] - list.offsets[i];
+        if(this.size == this.docIDs.length) {
+            this.insertPosting(this.size, docID, 0);
+        } else {
+            this.docIDs[this.size] = docID;
+            this.size++;
+            this.offsets[this.size] = this.offsets[this.size-1];
+            if(this.scores != null) {
+                this.scores[this.size-1] = 0;
+            }
+        }
+        this.setScore(this.size-1, list.getScore(i));
+        int end = this.offsets[this.size];
+        this.ensurePositionsCapacity(end + n);
+        System.arraycopy(list.positions, list.offsets[i], this.positions, end, n);
+        this.offsets[this.size] = end + n;
     }
 
-    public PostingsEntry add(PostingsEntry entry) {
-        int start = 0;
-        int end = this.list.size()-1;
-        int i;
-        while(end >= start){
-            i = (start + end)/2;
-            if(this.list.get(i).docID == entry.docID) {
-                return this.list.get(i);
-            } else if(entry.docID > this.list.get(i).docID) {
-                start = i+1;
-            } else {
-                end = i-1;
+    /** Adds a copy of entry if its document is not already in the list. */
+    public void add(PostingsEntry entry) {
+        this.dropBlockBounds();
+        int i = this.indexOf(entry.docID);
+        if(i < 0) {
+            i = -i - 1;
+            this.insertPosting(i, entry.docID, entry.score);
+            this.insertPositions(i, entry.positions, 0, entry.nbPositions);
+        }
+    }
+
+    /** Opens an empty posting for docID at index i. */
+    private void insertPosting(int i, int docID, double score) {
+        if(this.size == this.docIDs.length) {
+            int capacity = this.docIDs.length * 2;
+            this.docIDs = Arrays.copyOf(this.docIDs, capacity);
+            this.offsets = Arrays.copyOf(this.offsets, capacity + 1);
+            if(this.scores != null) {
+                this.scores = Arrays.copyOf(this.scores, capacity);
             }
         }
-        this.list.add(start, entry);
-        return entry;
-    }
-
-    private PostingsEntry addAndMerge(PostingsEntry entry) {
-        int start = 0;
-        int end = this.list.size()-1;
-        int i;
-        while(end >= start) {
-            i = (start + end)/2;
-            if(this.list.get(i).docID == entry.docID) {
-                this.list.get(i).merge(entry);
-                return this.list.get(i);
-            } else if(entry.docID > this.list.get(i).docID) {
-                start = i+1;
-            } else {
-                end = i-1;
+        System.arraycopy(this.docIDs, i, this.docIDs, i + 1, this.size - i);
+        System.arraycopy(this.offsets, i, this.offsets, i + 1, this.size - i + 1);
+        if(this.scores != null) {
+            System.arraycopy(this.scores, i, this.scores, i + 1, this.size - i);
+            this.scores[i] = 0;
+        }
+        this.docIDs[i] = docID;
+        this.size++;
+        this.setScore(i, score);
+    }
+
+    /** Inserts a position in the sorted positions of the ith posting. */
+    private void insertPosition(int i, int position) {
+        int p = Arrays.binarySearch(this.positions, this.offsets[i], this.offsets[i+1], position);
+        if(p >= 0) {
+            return;
+        }
+        p = -p - 1;
+        this.ensurePositionsCapacity(this.offsets[this.size] + 1);
+        System.arraycopy(this.positions, p, this.positions, p + 1, this.offsets[this.size] - p);
+        this.positions[p] = position;
+        for(int j=i+1;j<=this.size;++j) {
+            this.offsets[j]++;
+        }
+    }
+
+    /** Inserts sorted positions src[from..to[ as the positions of the (empty) ith posting. */
+    private void insertPositions(int i, int[] src, int from, int to) {
+        int n = to - from;
+        int p = this.offsets[i];
+        this.ensurePositionsCapacity(this.offsets[this.size] + n);
+        System.arraycopy(this.positions, p, this.positions, p + n, this.offsets[this.size] - p);
+        System.arraycopy(src, from, this.positions, p, n);
+        for(int j=i+1;j<=this.size;++j) {
+            this.offsets[j] += n;
+        }
+    }
+
+    private void ensurePositionsCapacity(int capacity) {
+        if(capacity > this.positions.length) {
+            this.positions = Arrays.copyOf(this.positions, Math.max(capacity, this.positions.length * 2));
+        }
+    }
+
+    /** Releases the unused capacity of the arrays. */
+    public void trimToSize() {
+        this.docIDs = Arrays.copyOf(this.docIDs, Math.max(this.size, 1));
+        this.offsets = Arrays.copyOf(this.offsets, this.docIDs.length + 1);
+        this.positions = Arrays.copyOf(this.positions, Math.max(this.offsets[this.size], 1));
+        if(this.scores != null) {
+            this.scores = Arrays.copyOf(this.scores, Math.max(this.size, 1));
+        }
+    }
+
+    /**
+    *  Returns this list without the postings of the documents of deleted,
+    *  or this list itself if none of its documents is deleted. The score
+    *  bound of a block of the copy is the largest bound of the blocks its
+    *  postings come from.
+    */
+    public PostingsList without(BitSet deleted) {
+        int i = 0;
+        while(i < this.size && !deleted.get(this.docIDs[i])) {
+            i++;
+        }
+        if(i == this.size) {
+            return this;
+        }
+        float[] bounds = this.blockBounds;
+        double[] postingBounds = bounds != null ? new double[this.size] : null;
+        PostingsList list = new PostingsList();
+        for(i=0;i<this.size;++i) {
+            if(!deleted.get(this.docIDs[i])) {
+                if(postingBounds != null) {
+                    postingBounds[list.size] = this.postingBound(bounds, i);
+                }
+                list.append(this, i);
             }
         }
-        this.list.add(start, entry);
-        return entry;
+        list.trimToSize();
+        if(postingBounds != null) {
+            list.blockBounds = list.blockMaxima(postingBounds);
+        }
+        return list;
+    }
+
+    /** Approximate number of bytes of memory used by this list. */
+    public long memorySize() {
+        long bytes = 64 + 4L * (this.docIDs.length + this.offsets.length + this.positions.length);
+        if(this.scores != null) {
+            bytes += 8L * this.scores.length;
+        }
+        return bytes;
     }
 
+    /**
+    *  Merges listEntries into this list, merging the positions of common
+    *  documents. If both lists have score bounds, the bound of a posting of
+    *  the result is the bound of its block in its list, or the sum of both
+    *  for a common document, whose tf is the sum of both.
+    */
     public void merge(PostingsList listEntries) {
-        for(int i=0;i<listEntries.list.size();++i) {
-            this.addAndMerge(new PostingsEntry(listEntries.list.get(i)));
+        float[] bounds1 = this.blockBounds;
+        float[] bounds2 = listEntries.blockBounds;
+        int n = this.size + listEntries.size;
+        double[] postingBounds = bounds1 != null && bounds2 != null ? new double[n] : null;
+        int[] newDocIDs = new int[Math.max(n, 1)];
+        int[] newOffsets = new int[newDocIDs.length + 1];
+        int[] newPositions = new int[Math.max(this.offsets[this.size] + listEntries.offsets[listEntries.size], 1)];
+        double[] newScores = (this.scores != null || listEntries.scores != null) ? new double[Math.max(n, 1)] : null;
+        int p1 = 0;
+        int p2 = 0;
+        int k = 0;
+        int pos = 0;
+        while(p1 < this.size || p2 < listEntries.size) {
+            newOffsets[k] = pos;
+            if(p2 >= listEntries.size || (p1 < this.size && this.docIDs[p1] < listEntries.docIDs[p2])) {
+                newDocIDs[k] = this.docIDs[p1];
+                if(newScores != null) newScores[k] = this.getScore(p1);
+                if(postingBounds != null) postingBounds[k] = this.postingBound(bounds1, p1);
+                pos = copyPositions(this, p1, newPositions, pos);
+                p1++;
+            } else if(p1 >= this.size || listEntries.docIDs[p2] < this.docIDs[p1]) {
+                newDocIDs[k] = listEntries.docIDs[p2];
+                if(newScores != null) newScores[k] = listEntries.getScore(p2);
+                if(postingBounds != null) postingBounds[k] = listEntries.postingBound(bounds2, p2);
+                pos = copyPositions(listEntries, p2, newPositions, pos);
+                p2++;
+            } else {
+                newDocIDs[k] = this.docIDs[p1];
+                if(newScores != null) newScores[k] = this.getScore(p1);
+                if(postingBounds != null) postingBounds[k] = this.postingBound(bounds1, p1) + listEntries.postingBound(bounds2, p2);
+                pos = mergePositions(this, p1, listEntries, p2, newPositions, pos);
+                p1++;
+                p2++;
+            }
+            k++;
+        }
+        newOffsets[k] = pos;
+        this.docIDs = newDocIDs;
+        this.offsets = newOffsets;
+        this.positions = newPositions;
+        this.scores = newScores;
+        this.size = k;
+        this.blockBounds = postingBounds != null ? this.blockMaxima(postingBounds) : null;
+    }
+
+    /**
+    *  Merges lists, of which no two hold the same document, into a new
+    *  list in one pass: the postings of each list are copied once, a run
+    *  of postings below the heads of the other lists at a time. If every
+    *  list has score bounds, the result has the bounds of the blocks its
+    *  postings come from.
+    */
+    static PostingsList merge(List<PostingsList> lists) {
+        int n = 0;
+        int positionCount = 0;
+        boolean scored = false;
+        boolean bounded = true;
+        for(PostingsList list : lists) {
+            n += list.size;
+            positionCount += list.offsets[list.size];
+            scored |= list.scores != null;
+            bounded &= list.blockBounds != null;
+        }
+        double[] postingBounds = bounded ? new double[n] : null;
+        PostingsList merged = new PostingsList(new int[Math.max(n, 1)], new int[Math.max(n, 1) + 1], new int[Math.max(positionCount, 1)], n);
+        if(scored) {
+            merged.scores = new double[merged.docIDs.length];
+        }
+        PostingsList[] sources = lists.toArray(new PostingsList[lists.size()]);
+        int[] heads = new int[sources.length];
+        int k = 0;
+        int pos = 0;
+        while(k < n) {
+            // The list with the smallest head, and the smallest head of the others.
+            int best = -1;
+            int next = Integer.MAX_VALUE;
+            for(int l=0;l<sources.length;++l) {
+                if(heads[l] < sources[l].size) {
+                    int docID = sources[l].docIDs[heads[l]];
+                    if(best < 0 || docID < sources[best].docIDs[heads[best]]) {
+                        if(best >= 0) {
+                            next = sources[best].docIDs[heads[best]];
+                        }
+                        best = l;
+                    } else if(docID < next) {
+                        next = docID;
+                    }
+                }
+            }
+            PostingsList source = sources[best];
+            int start = heads[best];
+            int end = start + 1;
+            while(end < source.size && source.docIDs[end] < next) {
+                ++end;
+            }
+            int count = end - start;
+            System.arraycopy(source.docIDs, start, merged.docIDs, k, count);
+            if(postingBounds != null) {
+                for(int i=0;i<count;++i) {
+                    postingBounds[k + i] = source.postingBound(source.blockBounds, start + i);
+                }
+            }
+            if(merged.scores != null) {
+                for(int i=0;i<count;++i) {
+                    merged.scores[k + i] = source.getScore(start + i);
+                }
+            }
+            int shift = pos - source.offsets[start];
+            for(int i=0;i<count;++i) {
+                merged.offsets[k + i] = source.offsets[start + i] + shift;
+            }
+            int positions = source.offsets[end] - source.offsets[start];
+            System.arraycopy(source.positions, source.offsets[start], merged.positions, pos, positions);
+            pos += positions;
+            k += count;
+            heads[best] = end;
+        }
+        merged.offsets[n] = pos;
+        if(postingBounds != null) {
+            merged.blockBounds = merged.blockMaxima(postingBounds);
         }
+        return merged;
+    }
+
+    private static int copyPositions(PostingsList l, int i, int[] dst, int pos) {
+        int n = l.offsets[i+1] - l.offsets[i];
+        System.arraycopy(l.positions, l.offsets[i], dst, pos, n);
+        return pos + n;
+    }
+
+    private static int mergePositions(PostingsList l1, int i1, PostingsList l2, int i2, int[] dst, int pos) {
+        int a = l1.offsets[i1];
+        int aEnd = l1.offsets[i1+1];
+        int b = l2.offsets[i2];
+        int bEnd = l2.offsets[i2+1];
+        while(a < aEnd || b < bEnd) {
+            if(b >= bEnd || (a < aEnd && l1.positions[a] < l2.positions[b])) {
+                dst[pos++] = l1.positions[a++];
+            } else if(a >= aEnd || l2.positions[b] < l1.positions[a]) {
+                dst[pos++] = l2.positions[b++];
+            } else {
+                dst[pos++] = l1.positions[a++];
+                b++;
+            }
+        }
+        return pos;
     }
 
     public String toString() {
-        String s = "";
-        for(int i=0;i<this.list.size();++i) {
-            s += this.list.get(i).toString();
+        StringBuilder s = new StringBuilder();
+        for(int i=0;i<this.size;++i) {
+            s.append(this.docIDs[i]).append(';');
+            s.append(this.getScore(i));
+            s.append('[');
+            for(int j=this.offsets[i];j<this.offsets[i+1];++j) {
+                s.append(this.positions[j]);
+                if(j < this.offsets[i+1]-1) {
+                    s.append(',');
+                }
+            }
+            s.append(']');
         }
-        return s;
+        return s.toString();
     }
 
-    // N = [# documents in the corpus],
-    // len = [# words in d].
-    public void computeScore(int N,  HashMap<Integer,Integer> docsLength) {
-        double idf = Math.log10((double)N/(double)this.list.size());
-        //System.out.println("N : " + Integer.toString(N));
-        for(int i=0;i<this.list.size();++i) {
-            this.list.get(i).computeScore(idf, docsLength.get(this.list.get(i).docID));
+    // tf-idf score = tf * idf * (1 / len), with the idf and 1 / len
+    // computed when the index was committed.
+    public void computeScore(DocumentNorms norms) {
+        double idf = norms.idf(this.size);
+        double[] inverseLengths = norms.getInverseLengths();
+        for(int i=0;i<this.size;++i) {
+            this.setScore(i, (double)this.getFrequency(i) * idf * inverseLengths[this.docIDs[i]]);
         }
     }
 
     public void sortPostingListByScore() {
-        Collections.sort(this.list);
+        this.dropBlockBounds();
+        ArrayList<PostingsEntry> entries = new ArrayList<PostingsEntry>(this.size);
+        for(int i=0;i<this.size;++i) {
+            entries.add(this.get(i));
+        }
+        Collections.sort(entries);
+        int pos = 0;
+        for(int i=0;i<entries.size();++i) {
+            PostingsEntry entry = entries.get(i);
+            this.docIDs[i] = entry.docID;
+            this.offsets[i] = pos;
+            System.arraycopy(entry.positions, 0, this.positions, pos, entry.nbPositions);
+            pos += entry.nbPositions;
+            this.setScore(i, entry.score);
+        }
     }
 
     public boolean documentExists(int docID) {
-        int start = 0;
-        int end = this.list.size()-1;
-        int i;
-        while(end >= start) {
-            i = (start + end)/2;
-            if(this.list.get(i).docID == docID) {
-                return true;
-            } else if(docID > this.list.get(i).docID) {
-                start = i+1;
-            } else {
-                end = i-1;
-            }
-        }
-        return false;
+        return this.indexOf(docID) >= 0;
     }
 }
@@ -124,7 +124,7 @@ public class Query {
             }
 
             // Number of documents
-            double N = engine.index.docNames.size();
+            double N = Index.documentCount();
 
             // Normalize query
             for(int i=0;i<queryterm.size();++i) {
@@ -140,7 +140,7 @@ public class Query {
                 if(docIsRelevant[i]) {
                     PostingsEntry entry = results.get(i);
                     ArrayList<String> termsOfDocument = engine.index.getTermFromDocument(entry.docID);
-                    double docLength = engine.index.docLengths.get(entry.docID);
+                    double docLength = Index.docLength(entry.docID);
                     for (String term : termsOfDocument) {
                         int existingIndex = queryterm.indexOf(term);
                         // IDF
@@ -0,0 +1,107 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ *  Compares the tf-idf ranking of the Searcher, with MaxScore pruning, with
+ *  scoring every posting of every query term, on a random collection whose
+ *  term frequencies follow Zipf's law. The queries are short ones, and the
+ *  same queries expanded by relevance feedback on their best 1, 2 and 4
+ *  results, which adds every term of these documents as Query does. Both
+ *  rankings must return the same top k with the same scores.
+ *
+ *  Usage: java -cp classes ir.RankingBenchmark [number of documents]
+ */
+public class RankingBenchmark {
+
+    static final int QUERIES = 20;
+
+    /** The lists, idfs and weights of a query, as Searcher.tfIdf reads them. */
+    private static class Lists {
+        final ArrayList<PostingsList> lists = new ArrayList<PostingsList>();
+        double[] idfs;
+        double[] weights;
+
+        Lists(Query query, Index index) {
+            query.computeWeightsQuery();
+            this.idfs = new double[query.size()];
+            this.weights = new double[query.size()];
+            for(int i=0;i<query.size();++i) {
+                PostingsList list = index.getPostings(query.queryterm.get(i).term);
+                if(list != null) {
+                    this.idfs[this.lists.size()] = Index.norms.idf(list.size());
+                    this.weights[this.lists.size()] = query.queryterm.get(i).weight;
+                    this.lists.add(list);
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int docs = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        Random random = new Random(0);
+        HashedIndex index = ThroughputBenchmark.buildCollection(docs, random);
+        int k = SearchGUI.MAX_RESULTS;
+
+        // The first pass warms the JIT compiler up and is not shown.
+        for(int pass=0;pass<2;++pass) {
+            if(pass == 1) {
+                System.out.println(String.format("%10s %10s %16s %12s %10s", "feedback", "terms", "exhaustive(ms)", "maxscore(ms)", "hits"));
+            }
+            run(index, k, pass == 1);
+        }
+    }
+
+    /** Runs the queries with 0, 1, 2 and 4 relevant documents, and prints the times if print. */
+    static void run(HashedIndex index, int k, boolean print) {
+        for(int relevant=0;relevant<=4;relevant=Math.max(2 * relevant, 1)) {
+            Random queries = new Random(1);
+            long exhaustiveTime = 0;
+            long maxScoreTime = 0;
+            long terms = 0;
+            long hits = 0;
+            for(int q=0;q<QUERIES;++q) {
+                Query query = new Query();
+                while(query.size() < 2) {
+                    String term = "t" + (int)Math.pow(ThroughputBenchmark.VOCABULARY, queries.nextDouble());
+                    if(index.getPostings(term) != null) {
+                        query.add(term, 1);
+                    }
+                }
+                if(relevant > 0) {
+                    // The expansion of Query.relevanceFeedback: every term of the relevant documents.
+                    Lists original = new Lists(query.copy(), index);
+                    PostingsList results = Searcher.tfIdfTopK(original.lists, original.idfs, original.weights, Index.norms, relevant);
+                    for(int r=0;r<results.size();++r) {
+                        for(String term : index.getTermFromDocument(results.getDocID(r))) {
+                            query.add(term, 1);
+                        }
+                    }
+                }
+                Lists lists = new Lists(query, index);
+                long start = System.nanoTime();
+                PostingsList expected = Searcher.tfIdfTopK(lists.lists, lists.idfs, lists.weights, Index.norms, k);
+                long middle = System.nanoTime();
+                PostingsList results = Searcher.maxScore(lists.lists, lists.idfs, lists.weights, Index.norms, k);
+                long end = System.nanoTime();
+                exhaustiveTime += middle - start;
+                maxScoreTime += end - middle;
+                if(results.size() != expected.size()) {
+                    throw new IllegalStateException("Rankings differ in size");
+                }
+                for(int i=0;i<results.size();++i) {
+                    if(results.getDocID(i) != expected.getDocID(i) || results.getScore(i) != expected.getScore(i)) {
+                        throw new IllegalStateException("Rankings differ at " + i);
+                    }
+                }
+                terms += lists.lists.size();
+                hits += results.getTotalHits();
+            }
+            if(print) {
+                System.out.println(String.format("%10d %10d %16.2f %12.2f %10d", relevant, terms / QUERIES, exhaustiveTime / 1e6 / QUERIES,
+                                                 maxScoreTime / 1e6 / QUERIES, hits / QUERIES));
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package ir;
+
+/**
+ *  Keeps the k best documents of a ranked search in a bounded min-heap, so
+ *  that selecting them among n scored documents costs O(n log k) instead
+ *  of sorting all of them.
+ *
+ *  Documents are ranked by decreasing score, then by increasing docID.
+ */
+public class ScoreHeap {
+
+    private final int[] docIDs;
+    private final double[] scores;
+    private int size = 0;
+
+    /** Number of documents offered to the heap. */
+    private int offered = 0;
+
+    public ScoreHeap(int k) {
+        this.docIDs = new int[Math.max(k, 0)];
+        this.scores = new double[Math.max(k, 0)];
+    }
+
+    /** Whether the heap holds k documents. */
+    public boolean isFull() {
+        return this.size == this.docIDs.length;
+    }
+
+    /**
+     *  The score of the kth best document so far, which a document must
+     *  beat to enter a full heap, or infinity if k is 0.
+     */
+    public double worstScore() {
+        return this.size > 0 ? this.scores[0] : Double.POSITIVE_INFINITY;
+    }
+
+    /** Offers a scored document, kept if it is among the k best so far. */
+    public void offer(int docID, double score) {
+        this.offered++;
+        if(this.size < this.docIDs.length) {
+            this.docIDs[this.size] = docID;
+            this.scores[this.size] = score;
+            this.siftUp(this.size++);
+        } else if(this.size > 0 && worse(this.docIDs[0], this.scores[0], docID, score)) {
+            this.docIDs[0] = docID;
+            this.scores[0] = score;
+            this.siftDown(0);
+        }
+    }
+
+    /**
+     *  Returns the documents kept, best first, as a postings list without
+     *  positions whose total hit count is the number of documents offered.
+     *  The heap is empty afterwards.
+     */
+    public PostingsList toPostingsList() {
+        int n = this.size;
+        int[] docIDs = new int[Math.max(n, 1)];
+        double[] scores = new double[n];
+        for(int i=n-1;i>=0;--i) {
+            docIDs[i] = this.docIDs[0];
+            scores[i] = this.scores[0];
+            this.size--;
+            this.docIDs[0] = this.docIDs[this.size];
+            this.scores[0] = this.scores[this.size];
+            this.siftDown(0);
+        }
+        PostingsList list = new PostingsList(docIDs, new int[docIDs.length + 1], new int[1], n);
+        for(int i=0;i<n;++i) {
+            list.setScore(i, scores[i]);
+        }
+        list.setTotalHits(this.offered);
+        return list;
+    }
+
+    /** Whether document 1 ranks after document 2. */
+    private static boolean worse(int docID1, double score1, int docID2, double score2) {
+        return score1 < score2 || (score1 == score2 && docID1 > docID2);
+    }
+
+    private void siftUp(int i) {
+        while(i > 0) {
+            int parent = (i - 1) / 2;
+            if(!worse(this.docIDs[i], this.scores[i], this.docIDs[parent], this.scores[parent])) {
+                break;
+            }
+            this.swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while(true) {
+            int worst = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if(left < this.size && worse(this.docIDs[left], this.scores[left], this.docIDs[worst], this.scores[worst])) {
+                worst = left;
+            }
+            if(right < this.size && worse(this.docIDs[right], this.scores[right], this.docIDs[worst], this.scores[worst])) {
+                worst = right;
+            }
+            if(worst == i) {
+                break;
+            }
+            this.swap(i, worst);
+            i = worst;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int docID = this.docIDs[i];
+        this.docIDs[i] = this.docIDs[j];
+        this.docIDs[j] = docID;
+        double score = this.scores[i];
+        this.scores[i] = this.scores[j];
+        this.scores[j] = score;
+    }
+}
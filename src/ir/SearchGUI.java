@@ -32,6 +32,11 @@ public class SearchGUI extends JFrame {
     /**  The results of a search query. */
     private PostingsList results;
 
+    /**  The last query as it was searched, to rank more of its results. */
+    private Query searchedQuery;
+    private QueryType searchedQueryType;
+    private RankingType searchedRankingType;
+
     /**  The query type (either intersection, phrase, or ranked). */
     QueryType queryType = QueryType.INTERSECTION_QUERY;
 
@@ -151,12 +156,19 @@ public class SearchGUI extends JFrame {
                     }
                     query.relevanceFeedback( results, relevant, engine, queryType);
                 }
-                // Search and print results. Access to the index is synchronized since
-                // we don't want to search at the same time we're indexing new files
-                // (this might corrupt the index).
+                // Search and print results. Searches share the read lock of the index
+                // since we don't want to search at the same time we're indexing new
+                // files (this might corrupt the index).
                 long startTime = System.currentTimeMillis();
-                synchronized ( engine.indexLock ) {
-                    results = engine.searcher.search( query, queryType, rankingType );
+                searchedQuery = query.copy();
+                searchedQueryType = queryType;
+                searchedRankingType = rankingType;
+                engine.indexLock.readLock().lock();
+                try {
+                    results = engine.searcher.search( query, queryType, rankingType, MAX_RESULTS );
+                }
+                finally {
+                    engine.indexLock.readLock().unlock();
                 }
                 long elapsedTime = System.currentTimeMillis() - startTime;
                 // Display the first few results + a button to see all results.
@@ -263,11 +275,21 @@ public class SearchGUI extends JFrame {
      *  @param elapsedTime Shows how long time it took to compute the results.
      */
     void displayResults( int maxResultsToDisplay, double elapsedTime ) {
-        displayInfoText( String.format( "Found %d matching document(s) in %.3f seconds", results.size(), elapsedTime ));
+        if ( maxResultsToDisplay > results.size() && results.size() < results.getTotalHits() ) {
+            // Ranked searches only return the best results, rank enough of them.
+            engine.indexLock.readLock().lock();
+            try {
+                results = engine.searcher.search( searchedQuery.copy(), searchedQueryType, searchedRankingType, maxResultsToDisplay );
+            }
+            finally {
+                engine.indexLock.readLock().unlock();
+            }
+        }
+        displayInfoText( String.format( "Found %d matching document(s) in %.3f seconds", results.getTotalHits(), elapsedTime ));
         box = new JCheckBox[maxResultsToDisplay];
         int i;
         for ( i=0; i<results.size() && i<maxResultsToDisplay; i++ ) {
-            String description = i + ". " + displayableFileName( engine.index.docNames.get( results.get(i).docID ));
+            String description = i + ". " + displayableFileName( engine.searcher.docName( results.get(i).docID ));
             if ( queryType == QueryType.RANKED_QUERY ) {
                 description += "   " + String.format( "%.5f", results.get(i).score );
             }
@@ -337,7 +359,7 @@ public class SearchGUI extends JFrame {
             resultWindow.add( result );
         }
         // If there were many results, give the user an option to see all of them.
-        if ( i<results.size() ) {
+        if ( i<results.getTotalHits() ) {
             JPanel actionButtons = new JPanel();
             actionButtons.setLayout(new BoxLayout(actionButtons, BoxLayout.X_AXIS));
             actionButtons.setAlignmentX(Component.LEFT_ALIGNMENT);
@@ -355,12 +377,12 @@ public class SearchGUI extends JFrame {
 
             actionButtons.add(Box.createRigidArea(new Dimension(5,0)));
 
-            JButton displayAllBut = new JButton( "Display all " + results.size() + " results" );
+            JButton displayAllBut = new JButton( "Display all " + results.getTotalHits() + " results" );
             displayAllBut.setFont( resultFont );
             actionButtons.add( displayAllBut );
             Action displayAll = new AbstractAction() {
                 public void actionPerformed( ActionEvent e ) {
-                    displayResults( results.size(), elapsedTime );
+                    displayResults( results.getTotalHits(), elapsedTime );
                 }
             };
             displayAllBut.addActionListener( displayAll );
@@ -0,0 +1,288 @@
+package ir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ *  Serves the searches of an engine over HTTP on the loopback interface,
+ *  for the headless mode of the engine.
+ *
+ *  GET /search?q=<query>&type=<query type>&ranking=<ranking type>&k=<k>
+ *  answers a JSON object with the total hit count, the time the search
+ *  took and the k first results, each with its docID, document name and
+ *  score. The query type is intersection (the default), phrase or ranked,
+ *  the ranking type tf_idf (the default), pagerank or combination, and k
+ *  is 10 by default. GET /stats answers the number of searches and their
+ *  mean and largest latency.
+ *
+ *  A server of a shard of a collection also answers GET /df?q=<query>
+ *  with the number of documents of the shard and the document frequency
+ *  of the terms the query is expanded to, and its searches take the
+ *  statistics of the whole collection, n=<documents> and df=<term df
+ *  ...>, to rank the documents of the shard with the idf of the
+ *  collection (see ShardCoordinator).
+ *
+ *  The searches run on a pool of one thread per processor, holding the
+ *  read lock of the index, behind a queue of QUEUE_SIZE requests. When
+ *  the queue is full, the thread accepting the connections runs the
+ *  request itself, which stops accepting new ones until it is done.
+ */
+public class SearchServer {
+
+    /** Number of requests waiting for a worker before the server slows down. */
+    static final int QUEUE_SIZE = 64;
+
+    /** Largest k of a request. */
+    static final int MAX_K = 10000;
+
+    private final Engine engine;
+    private final HttpServer server;
+    private final ThreadPoolExecutor workers;
+
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public SearchServer(Engine engine, int port) throws IOException {
+        this.engine = engine;
+        int threads = Runtime.getRuntime().availableProcessors();
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                              new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                                              new ThreadPoolExecutor.CallerRunsPolicy());
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.setExecutor(this.workers);
+        this.server.createContext("/search", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                search(exchange);
+            }
+        });
+        this.server.createContext("/df", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                df(exchange);
+            }
+        });
+        this.server.createContext("/stats", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                stats(exchange);
+            }
+        });
+    }
+
+    public void start() {
+        this.server.start();
+        System.out.println("Serving searches on http://localhost:" + this.server.getAddress().getPort() + "/search");
+    }
+
+    /** Stops accepting requests, and waits at most delay seconds for the current ones. */
+    public void stop(int delay) {
+        this.server.stop(delay);
+        this.workers.shutdown();
+    }
+
+    private void search(HttpExchange exchange) throws IOException {
+        if(!"GET".equals(exchange.getRequestMethod())) {
+            send(exchange, 405, error("Only GET is supported"));
+            return;
+        }
+        HashMap<String,String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+        String queryString = parameters.get("q");
+        if(queryString == null || queryString.trim().isEmpty()) {
+            send(exchange, 400, error("Missing query q"));
+            return;
+        }
+        queryString = queryString.toLowerCase().trim();
+        QueryType queryType;
+        RankingType rankingType;
+        int k;
+        CollectionStatistics statistics = null;
+        try {
+            queryType = parseQueryType(parameters.get("type"));
+            rankingType = parseRankingType(parameters.get("ranking"));
+            k = parameters.containsKey("k") ? Integer.parseInt(parameters.get("k")) : 10;
+            if(k < 1 || k > MAX_K) {
+                throw new IllegalArgumentException("k must be between 1 and " + MAX_K);
+            }
+            if(parameters.containsKey("n")) {
+                String df = parameters.get("df");
+                statistics = CollectionStatistics.parse(Integer.parseInt(parameters.get("n")), df != null ? df : "");
+            }
+        } catch(NumberFormatException e) {
+            send(exchange, 400, error("k, n and the frequencies of df must be numbers"));
+            return;
+        } catch(IllegalArgumentException e) {
+            send(exchange, 400, error(e.getMessage()));
+            return;
+        }
+
+        long start = System.nanoTime();
+        PostingsList results;
+        engine.indexLock.readLock().lock();
+        try {
+            results = engine.searcher.search(new Query(queryString), queryType, rankingType, k, statistics);
+        } catch(RuntimeException e) {
+            send(exchange, 500, error(e.toString()));
+            return;
+        } finally {
+            engine.indexLock.readLock().unlock();
+        }
+        long elapsed = System.nanoTime() - start;
+        this.searches.incrementAndGet();
+        this.totalNanos.addAndGet(elapsed);
+        long max = this.maxNanos.get();
+        while(elapsed > max && !this.maxNanos.compareAndSet(max, elapsed)) {
+            max = this.maxNanos.get();
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"query\":").append(quote(queryString));
+        json.append(",\"type\":").append(quote(queryType.name()));
+        json.append(",\"ranking\":").append(quote(rankingType.name()));
+        json.append(",\"k\":").append(k);
+        json.append(",\"totalHits\":").append(results != null ? results.getTotalHits() : 0);
+        json.append(",\"elapsedMs\":").append(String.format(Locale.ROOT, "%.3f", elapsed / 1e6));
+        json.append(",\"results\":[");
+        for(int i=0;results!=null && i<results.size() && i<k;++i) {
+            if(i > 0) {
+                json.append(',');
+            }
+            int docID = results.getDocID(i);
+            json.append("{\"docID\":").append(docID);
+            json.append(",\"name\":").append(quote(engine.searcher.docName(docID)));
+            json.append(",\"score\":").append(results.getScore(i)).append('}');
+        }
+        json.append("]}");
+        send(exchange, 200, json.toString());
+    }
+
+    private void df(HttpExchange exchange) throws IOException {
+        if(!"GET".equals(exchange.getRequestMethod())) {
+            send(exchange, 405, error("Only GET is supported"));
+            return;
+        }
+        String queryString = parseQuery(exchange.getRequestURI().getRawQuery()).get("q");
+        if(queryString == null || queryString.trim().isEmpty()) {
+            send(exchange, 400, error("Missing query q"));
+            return;
+        }
+        CollectionStatistics statistics;
+        engine.indexLock.readLock().lock();
+        try {
+            statistics = engine.searcher.statistics(new Query(queryString.toLowerCase().trim()));
+        } catch(RuntimeException e) {
+            send(exchange, 500, error(e.toString()));
+            return;
+        } finally {
+            engine.indexLock.readLock().unlock();
+        }
+        StringBuilder json = new StringBuilder();
+        json.append("{\"documents\":").append(statistics.documents).append(",\"df\":{");
+        boolean first = true;
+        for(Map.Entry<String,Integer> df : statistics.df.entrySet()) {
+            if(!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append(quote(df.getKey())).append(':').append(df.getValue());
+        }
+        json.append("}}");
+        send(exchange, 200, json.toString());
+    }
+
+    private void stats(HttpExchange exchange) throws IOException {
+        long searches = this.searches.get();
+        String json = String.format(Locale.ROOT, "{\"searches\":%d,\"meanMs\":%.3f,\"maxMs\":%.3f}", searches,
+                                    searches > 0 ? this.totalNanos.get() / 1e6 / searches : 0.0, this.maxNanos.get() / 1e6);
+        send(exchange, 200, json);
+    }
+
+    /** The query type of a name like ranked or RANKED_QUERY, intersection by default. */
+    static QueryType parseQueryType(String name) {
+        if(name == null) {
+            return QueryType.INTERSECTION_QUERY;
+        }
+        String upper = name.toUpperCase();
+        for(QueryType type : QueryType.values()) {
+            if(type.name().equals(upper) || type.name().equals(upper + "_QUERY")) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown query type " + name);
+    }
+
+    /** The ranking type of a name like tf_idf or pagerank, tf_idf by default. */
+    static RankingType parseRankingType(String name) {
+        if(name == null) {
+            return RankingType.TF_IDF;
+        }
+        for(RankingType type : RankingType.values()) {
+            if(type.name().equalsIgnoreCase(name)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown ranking type " + name);
+    }
+
+    /** Decodes the parameters of the query part of a URI. */
+    static HashMap<String,String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        HashMap<String,String> parameters = new HashMap<String,String>();
+        if(rawQuery != null) {
+            for(String parameter : rawQuery.split("&")) {
+                int equals = parameter.indexOf('=');
+                if(equals > 0) {
+                    parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+                                   URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + quote(message) + "}";
+    }
+
+    /** A string as a JSON string literal, or null. */
+    static String quote(String s) {
+        if(s == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder(s.length() + 2);
+        quoted.append('"');
+        for(int i=0;i<s.length();++i) {
+            char c = s.charAt(i);
+            if(c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if(c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int)c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -22,6 +22,9 @@ public class Searcher {
     HashMap<Integer, Double> ranking = new HashMap<Integer, Double>();
     HashMap<String, Integer> docNamesPageRank = new HashMap<String, Integer>();
 
+    /** The shards searched instead of the index, or null to search the index. */
+    ShardCoordinator shards = null;
+
     /** Constructor */
     public Searcher(Index index, KGramIndex indexKGram) {
         this.index = index;
@@ -73,10 +76,35 @@ public class Searcher {
     }
 
     /**
-    *  Searches the index for postings matching the query.
+    *  Searches the index for postings matching the query. Ranked queries
+    *  return the results the GUI displays first.
     *  @return A postings list representing the result of the query.
     */
     public PostingsList search( Query query, QueryType queryType, RankingType rankingType ) {
+        return search(query, queryType, rankingType, SearchGUI.MAX_RESULTS);
+    }
+
+    /**
+    *  Searches the index for postings matching the query. Ranked queries
+    *  only return the k best documents, best first; the number of matching
+    *  documents is then the total hit count of the list.
+    *  @return A postings list representing the result of the query.
+    */
+    public PostingsList search( Query query, QueryType queryType, RankingType rankingType, int k ) {
+        return search(query, queryType, rankingType, k, null);
+    }
+
+    /**
+    *  Searches the index, a shard of a collection, for the k best documents
+    *  ranked with the idf of the statistics of the whole collection, or of
+    *  the index if statistics is null. When the searcher has shards, the
+    *  query is searched in the shards instead, and the docIDs of the
+    *  results are those of the coordinator (see docName).
+    */
+    public PostingsList search( Query query, QueryType queryType, RankingType rankingType, int k, CollectionStatistics statistics ) {
+        if(this.shards != null) {
+            return this.shards.search(query, queryType, rankingType, k);
+        }
         // K-GRAM
         HashMap<String, List<KGramPostingsEntry>> wildCards = new HashMap<String, List<KGramPostingsEntry> >();
         for(int i=0;i<query.size();++i) {
@@ -97,6 +125,7 @@ public class Searcher {
         ArrayList<PostingsList> lists = new ArrayList<PostingsList>();
         if(queryType == QueryType.RANKED_QUERY) {
             query.queryterm.clear();
+            ArrayList<String> terms = new ArrayList<String>();
             for (String key : wildCards.keySet()) {
                 PostingsList list = null;
                 for(int i=0;i<wildCards.get(key).size();++i) {
@@ -105,69 +134,127 @@ public class Searcher {
                     list = index.getPostings(term);
                     if(list != null) {
                         lists.add(list);
+                        terms.add(term);
                     }
                 }
             }
             if(rankingType == RankingType.PAGERANK) {
-                return this.pageRank(lists);
+                return this.pageRank(lists, k);
             } else if(rankingType == RankingType.COMBINATION) {
-                return this.combination(lists);
+                return this.combination(lists, this.idfs(terms, lists, statistics), k);
             } else {
-                return this.tfIdf(query);
+                return this.tfIdf(query, k, statistics);
             }
         } else {
+            PostingsList smallest = null;
             for (String key : wildCards.keySet()) {
                 PostingsList list = null;
-                for(int i=0;i<wildCards.get(key).size();++i) {
-                    String term = indexKGram.getTermByID(wildCards.get(key).get(i).tokenID);
-                    if(list == null) {
-                        list = new PostingsList(index.getPostings(term));
-                    } else {
-                        list.merge(index.getPostings(term));
+                if(wildCards.get(key).size() == 1 && smallest != null) {
+                    // Only the documents of the smallest list so far can be in the result,
+                    // the index may skip the blocks of the postings holding none of them.
+                    String term = indexKGram.getTermByID(wildCards.get(key).get(0).tokenID);
+                    list = index.getPostings(term, smallest);
+                } else {
+                    for(int i=0;i<wildCards.get(key).size();++i) {
+                        String term = indexKGram.getTermByID(wildCards.get(key).get(i).tokenID);
+                        PostingsList postings = index.getPostings(term);
+                        if(postings == null) {
+                            // All the documents of the term were deleted.
+                            continue;
+                        }
+                        if(list == null) {
+                            list = new PostingsList(postings);
+                        } else {
+                            list.merge(postings);
+                        }
                     }
                 }
-                if(list != null) {
-                    lists.add(list);
+                if(list == null || list.size() == 0) {
+                    // A term without postings matches no document.
+                    return new PostingsList();
+                }
+                lists.add(list);
+                if(smallest == null || list.size() < smallest.size()) {
+                    smallest = list;
                 }
             }
             if(queryType == QueryType.PHRASE_QUERY) {
-                return this.positionalIntersect(lists);
+                return positionalIntersect(lists);
             } else {
-                return this.intersect(lists);
+                return intersect(lists);
             }
         }
     }
 
-    private PostingsList intersect(ArrayList<PostingsList> lists) {
-        if(lists.size() > 0) {
-            int indexBestPostingList = 0;
-            int sizeBestPostingList = lists.get(0).size();
-            for(int i=1;i<lists.size();++i) {
-                if(lists.get(i).size() < sizeBestPostingList) {
-                    sizeBestPostingList = lists.get(0).size();
-                    indexBestPostingList = i;
+    /**
+    *  The statistics of the index for the terms a ranked query is expanded
+    *  to, which the coordinator of the shards adds up into those of the
+    *  whole collection.
+    */
+    public CollectionStatistics statistics( Query query ) {
+        CollectionStatistics statistics = new CollectionStatistics();
+        statistics.documents = index.norms.getDocuments();
+        for(int i=0;i<query.size();++i) {
+            for(KGramPostingsEntry match : indexKGram.match(query.queryterm.get(i).term)) {
+                String term = indexKGram.getTermByID(match.tokenID);
+                PostingsList list = index.getPostings(term);
+                if(list != null) {
+                    statistics.df.put(term, list.size());
                 }
             }
-            PostingsList inter = lists.get(indexBestPostingList);
-            int p1 = 0;
-            int p2 = 0;
-            for(int i=0;i<lists.size();++i) {
-                if(i != indexBestPostingList) {
-                    p1 = 0;
-                    p2 = 0;
-                    PostingsList interTemp = new PostingsList();
-                    while(p1 < inter.size() && p2 < lists.get(i).size()) {
-                        if(inter.get(p1).docID == lists.get(i).get(p2).docID) {
-                            interTemp.add(inter.get(p1));
-                            p1++;
-                            p2++;
-                        } else if(inter.get(p1).docID < lists.get(i).get(p2).docID) {
-                            p1++;
-                        } else {
-                            p2++;
-                        }
-                    }
-                    inter = interTemp;
+        }
+        return statistics;
+    }
+
+    /**
+    *  Searches these shards, given as host:port addresses of their search
+    *  servers, instead of the index, or the index again if shards is null.
+    */
+    public void setShards( List<String> shards ) {
+        this.shards = shards != null ? new ShardCoordinator(shards) : null;
+    }
+
+    /** The name of a document of the results of search. */
+    public String docName( int docID ) {
+        return this.shards != null ? this.shards.docName(docID) : Index.docName(docID);
+    }
+
+    /** The idf of each list, with the statistics of the collection if they are not null. */
+    private double[] idfs(ArrayList<String> terms, ArrayList<PostingsList> lists, CollectionStatistics statistics) {
+        double[] idfs = new double[lists.size()];
+        for(int i=0;i<idfs.length;++i) {
+            int df = lists.get(i).size();
+            idfs[i] = statistics != null ? statistics.idf(terms.get(i), df) : index.norms.idf(df);
+        }
+        return idfs;
+    }
+
+    /**
+    *  Size ratio between two lists above which the intersection looks the
+    *  postings of the shorter list up in the longer one with a galloping
+    *  search instead of merging both lists.
+    */
+    static final int GALLOP_RATIO = 16;
+
+    /**
+    *  Intersects the lists smallest first (SvS): each intermediate result is
+    *  at most as long as the shortest list, so the longest lists are only
+    *  probed for the few remaining candidates.
+    */
+    static PostingsList intersect(ArrayList<PostingsList> lists) {
+        if(lists.size() > 0) {
+            ArrayList<PostingsList> sorted = new ArrayList<PostingsList>(lists);
+            Collections.sort(sorted, new Comparator<PostingsList>() {
+                public int compare(PostingsList l1, PostingsList l2) {
+                    return Integer.compare(l1.size(), l2.size());
+                }
+            });
+            PostingsList inter = sorted.get(0);
+            for(int i=1;i<sorted.size() && inter.size() > 0;++i) {
+                if((long)inter.size() * GALLOP_RATIO < sorted.get(i).size()) {
+                    inter = gallopingIntersect(inter, sorted.get(i));
+                } else {
+                    inter = linearIntersect(inter, sorted.get(i));
                 }
             }
             return inter;
@@ -176,7 +263,43 @@ public class Searcher {
         }
     }
 
-    private PostingsList positionalIntersect(ArrayList<PostingsList> lists) {
+    /**
+    *  Merges two lists of similar sizes, jumping ahead in either list with
+    *  its skip pointers, as positionalIntersect does.
+    */
+    static PostingsList linearIntersect(PostingsList l1, PostingsList l2) {
+        PostingsList inter = new PostingsList();
+        int p1 = 0;
+        int p2 = 0;
+        while(p1 < l1.size() && p2 < l2.size()) {
+            if(l1.getDocID(p1) == l2.getDocID(p2)) {
+                inter.append(l1, p1);
+                p1++;
+                p2++;
+            } else if(l1.getDocID(p1) < l2.getDocID(p2)) {
+                p1 = l1.skipTo(p1, l2.getDocID(p2));
+            } else {
+                p2 = l2.skipTo(p2, l1.getDocID(p1));
+            }
+        }
+        return inter;
+    }
+
+    /** Looks every posting of the short list up in the long one. */
+    static PostingsList gallopingIntersect(PostingsList shortList, PostingsList longList) {
+        PostingsList inter = new PostingsList();
+        int p2 = 0;
+        for(int p1=0;p1<shortList.size() && p2<longList.size();++p1) {
+            p2 = longList.gallopTo(p2, shortList.getDocID(p1));
+            if(p2 < longList.size() && longList.getDocID(p2) == shortList.getDocID(p1)) {
+                inter.append(shortList, p1);
+                p2++;
+            }
+        }
+        return inter;
+    }
+
+    static PostingsList positionalIntersect(ArrayList<PostingsList> lists) {
         if(lists.size() > 0) {
             PostingsList inter = lists.get(0);
             int k = 1;
@@ -191,14 +314,14 @@ public class Searcher {
                 p2 = 0;
                 PostingsList interTemp = new PostingsList();
                 while(p1 < inter.size() && p2 < lists.get(i).size()) {
-                    if(inter.get(p1).docID == lists.get(i).get(p2).docID) {
-                        PostingsEntry entry = new PostingsEntry(inter.get(p1).docID, 0);
+                    if(inter.getDocID(p1) == lists.get(i).getDocID(p2)) {
+                        PostingsEntry entry = new PostingsEntry(inter.getDocID(p1), 0);
                         pp1 = 0;
-                        while(pp1 < inter.get(p1).positions.size()) {
+                        while(pp1 < inter.getFrequency(p1)) {
                             pp2 = 0;
-                            while(pp2 < lists.get(i).get(p2).positions.size()) {
-                                pos1 = inter.get(p1).positions.get(pp1);
-                                pos2 = lists.get(i).get(p2).positions.get(pp2);
+                            while(pp2 < lists.get(i).getFrequency(p2)) {
+                                pos1 = inter.getPosition(p1, pp1);
+                                pos2 = lists.get(i).getPosition(p2, pp2);
                                 if(pos1 == pos2 - k) {
                                     entry.addPosition(pos2);
                                 }
@@ -208,13 +331,13 @@ public class Searcher {
                         }
                         p1++;
                         p2++;
-                        if(entry.positions.size() > 0) {
+                        if(entry.nbPositions > 0) {
                             interTemp.add(entry);
                         }
-                    } else if(inter.get(p1).docID < lists.get(i).get(p2).docID) {
-                        p1++;
+                    } else if(inter.getDocID(p1) < lists.get(i).getDocID(p2)) {
+                        p1 = inter.skipTo(p1, lists.get(i).getDocID(p2));
                     } else {
-                        p2++;
+                        p2 = lists.get(i).skipTo(p2, inter.getDocID(p1));
                     }
                 }
                 inter = interTemp;
@@ -225,40 +348,20 @@ public class Searcher {
         }
     }
 
-    private PostingsList tfIdf(Query query) {
-        PostingsList results = new PostingsList();
-        double scores[] = new double[index.docNames.size()];
+    private PostingsList tfIdf(Query query, int k, CollectionStatistics statistics) {
         query.computeWeightsQuery();
-
+        ArrayList<PostingsList> lists = new ArrayList<PostingsList>();
+        ArrayList<String> terms = new ArrayList<String>();
+        double[] weights = new double[query.size()];
         for(int i=0;i<query.size();++i) {
             PostingsList list = index.getPostings(query.queryterm.get(i).term);
             if(list != null) {
-                list.computeScore(index.docNames.size(), index.docLengths);
-                for(int d=0;d<list.list.size();++d) {
-                    scores[list.list.get(d).docID] += list.list.get(d).score * query.queryterm.get(i).weight;
-                }
+                weights[lists.size()] = query.queryterm.get(i).weight;
+                lists.add(list);
+                terms.add(query.queryterm.get(i).term);
             }
         }
-
-        double[] scores_copy = Arrays.copyOf(scores, scores.length);
-        for(int i=0;i<scores.length;i++) {
-            int best = -1;
-            double max = 0;
-            for(int j=0;j<scores.length;j++) {
-                if(scores[j] > 0 && scores[j] > max) {
-                    best = j;
-                    max = scores[j];
-                }
-            }
-            if(best == -1) {
-                break;
-            }
-            results.add(new PostingsEntry(best,scores[best]));
-            scores[best] = Double.NEGATIVE_INFINITY;
-        }
-
-        results.sortPostingListByScore();
-        return results;
+        return maxScore(lists, this.idfs(terms, lists, statistics), weights, index.norms, k);
         // PostingsList union = lists.get(0);
         // lists.get(0).computeScore(index.docNames.size(), index.docLengths);
         // for(int i=1;i<lists.size();++i) {
@@ -275,28 +378,222 @@ public class Searcher {
         // return union;
     }
 
-    private PostingsList pageRank(ArrayList<PostingsList> lists) {
-        PostingsList union = lists.get(0);
-        lists.get(0).computeScore(index.docNames.size(), index.docLengths);
-        for(int i=1;i<lists.size();++i) {
-            for(int j=0;j<lists.get(i).size();++j) {
-                if(union.documentExists(lists.get(i).get(j).docID)) {
-                    union.getEntry(lists.get(i).get(j).docID).score += lists.get(i).get(j).score;
-                } else {
-                    union.add(lists.get(i).get(j));
+    /**
+    *  Ranks the documents of the lists by tf-idf, scoring every posting.
+    *  The score of list i in a document is tf * idf * weights[i] / length,
+    *  with the idfs of idfs and 1 / length of the norms. Returns the top k
+    *  with the number of documents with a positive score as total hit
+    *  count. The lists are only read. This is what maxScore must return.
+    */
+    static PostingsList tfIdfTopK(ArrayList<PostingsList> lists, double[] idfs, double[] weights, DocumentNorms norms, int k) {
+        double[] inverseLengths = norms.getInverseLengths();
+        double[] scores = new double[inverseLengths.length];
+        BitSet matched = new BitSet(scores.length);
+        for(int i=0;i<lists.size();++i) {
+            PostingsList list = lists.get(i);
+            double factor = idfs[i] * weights[i];
+            for(int p=0;p<list.size();++p) {
+                int docID = list.getDocID(p);
+                scores[docID] += (double)list.getFrequency(p) * factor * inverseLengths[docID];
+                matched.set(docID);
+            }
+        }
+        ScoreHeap heap = new ScoreHeap(k);
+        for(int docID=matched.nextSetBit(0);docID>=0;docID=matched.nextSetBit(docID + 1)) {
+            if(scores[docID] > 0) {
+                heap.offer(docID, scores[docID]);
+            }
+        }
+        return heap.toPostingsList();
+    }
+
+    /** Number of docIDs of a window of maxScore. */
+    static final int WINDOW = 4096;
+
+    /**
+    *  Relative margin of the comparisons of maxScore between sums of scores
+    *  added up in different orders, which may differ in their last bits.
+    */
+    static final double MARGIN = 1e-9;
+
+    /**
+    *  Ranks the documents of the lists by tf-idf, document at a time with
+    *  MaxScore pruning, and returns the same top k with the same scores as
+    *  tfIdfTopK, without scoring the documents which cannot make it.
+    *
+    *  The documents are read in windows of WINDOW docIDs. In a window, the
+    *  bound of a list is idf * weight times the largest score bound of its
+    *  blocks in the window (see PostingsList.getBlockBounds). The lists of
+    *  smallest bounds, whose bounds add up to at most the score of the kth
+    *  best document so far, are non-essential: a document found in them
+    *  only cannot make it. The essential lists are scored into the window
+    *  one list at a time, and only their documents are looked up in the
+    *  non-essential lists, largest bound first, until the bounds of the
+    *  lists left cannot lift the document above the kth best. The documents
+    *  which may still make it are scored again adding up the lists in
+    *  order, as tfIdfTopK does, so that the scores are the same.
+    *
+    *  The total hit count is the number of documents seen, or the size of
+    *  the longest list if it is larger: the documents of non-essential lists
+    *  only are not seen. Queries with negative weights are scored by
+    *  tfIdfTopK.
+    */
+    static PostingsList maxScore(ArrayList<PostingsList> lists, double[] idfs, double[] weights, DocumentNorms norms, int k) {
+        int n = lists.size();
+        double[] factors = new double[n];
+        float[][] bounds = new float[n][];
+        int first = Integer.MAX_VALUE;
+        int last = -1;
+        int longest = 0;
+        for(int i=0;i<n;++i) {
+            PostingsList list = lists.get(i);
+            factors[i] = idfs[i] * weights[i];
+            if(factors[i] < 0 || k <= 0) {
+                return tfIdfTopK(lists, idfs, weights, norms, k);
+            }
+            bounds[i] = list.getBlockBounds();
+            if(list.size() > 0) {
+                first = Math.min(first, list.getDocID(0));
+                last = Math.max(last, list.getDocID(list.size() - 1));
+                if(factors[i] > 0) {
+                    longest = Math.max(longest, list.size());
+                }
+            }
+        }
+        double[] inverseLengths = norms.getInverseLengths();
+        // The first posting of each list not before the window, and not before the document
+        // looked up in the non-essential lists.
+        int[] cursors = new int[n];
+        // The first posting of each essential list not before the document scored again.
+        int[] starts = new int[n];
+        boolean[] essential = new boolean[n];
+        // The bound of each list in the window in the high bits, the list in the low bits.
+        long[] order = new long[n];
+        // upper[j] is the sum of the bounds of the lists order[0..j].
+        double[] upper = new double[n];
+        double[] partial = new double[WINDOW];
+        ScoreHeap heap = new ScoreHeap(k);
+        double limit = 0;
+        int hits = 0;
+        for(int lo=first;lo<=last;) {
+            int hi = last - lo < WINDOW ? last + 1 : lo + WINDOW;
+            for(int i=0;i<n;++i) {
+                PostingsList list = lists.get(i);
+                int p = cursors[i] = list.gallopTo(cursors[i], lo);
+                double max = 0;
+                if(p < list.size() && list.getDocID(p) < hi) {
+                    int step = list.skipStep();
+                    int b = p / step;
+                    do {
+                        max = Math.max(max, bounds[i][b++]);
+                    } while(b * step < list.size() && list.getDocID(b * step) < hi);
+                }
+                float bound = max * factors[i] > 0 ? Math.nextUp((float)(max * factors[i])) : 0f;
+                order[i] = ((long)Float.floatToIntBits(bound) << 32) | i;
+            }
+            // Bits of non-negative floats sort as the floats.
+            Arrays.sort(order);
+            int e = 0;
+            double sum = 0;
+            for(int j=0;j<n;++j) {
+                sum += Float.intBitsToFloat((int)(order[j] >>> 32));
+                upper[j] = sum;
+                if(sum <= limit) {
+                    e = j + 1;
+                }
+            }
+            for(int j=0;j<n;++j) {
+                essential[(int)order[j]] = j >= e;
+            }
+            for(int j=e;j<n;++j) {
+                int i = (int)order[j];
+                PostingsList list = lists.get(i);
+                double factor = factors[i];
+                int p = starts[i] = cursors[i];
+                for(;p<list.size() && list.getDocID(p) < hi;++p) {
+                    int docID = list.getDocID(p);
+                    partial[docID - lo] += (double)list.getFrequency(p) * factor * inverseLengths[docID];
+                }
+                cursors[i] = p;
+            }
+            for(int w=0;e<n && w<hi-lo;++w) {
+                if(partial[w] <= 0) {
+                    continue;
+                }
+                int docID = lo + w;
+                double score = partial[w];
+                partial[w] = 0;
+                hits++;
+                int j = e - 1;
+                for(;j>=0 && score + upper[j] > limit;--j) {
+                    int i = (int)order[j];
+                    PostingsList list = lists.get(i);
+                    int p = cursors[i] = list.gallopTo(cursors[i], docID);
+                    if(p < list.size() && list.getDocID(p) == docID) {
+                        score += (double)list.getFrequency(p) * factors[i] * inverseLengths[docID];
+                    }
+                }
+                if(j >= 0 || score <= limit) {
+                    continue;
+                }
+                double exact = 0;
+                for(int i=0;i<n;++i) {
+                    PostingsList list = lists.get(i);
+                    int p = essential[i] ? (starts[i] = list.gallopTo(starts[i], docID)) : cursors[i];
+                    if(p < list.size() && list.getDocID(p) == docID) {
+                        exact += (double)list.getFrequency(p) * factors[i] * inverseLengths[docID];
+                    }
+                }
+                heap.offer(docID, exact);
+                if(heap.isFull()) {
+                    limit = heap.worstScore() * (1 - MARGIN);
                 }
             }
+            lo = hi;
         }
-        for(int i=0;i<union.list.size();++i) {
-            String doc[] = index.docNames.get(union.list.get(i).docID).split("/");
+        PostingsList results = heap.toPostingsList();
+        results.setTotalHits(Math.max(hits, longest));
+        return results;
+    }
+
+    /**
+    *  Adds the tf-idf scores of the documents of the lists, with the idf
+    *  of each list in idfs, into scores, indexed by docID, and returns the
+    *  documents of the lists. The lists are only read, they may be shared
+    *  with the index or its cache.
+    */
+    private BitSet tfIdfScores(ArrayList<PostingsList> lists, double[] idfs, double[] scores) {
+        double[] inverseLengths = index.norms.getInverseLengths();
+        BitSet matched = new BitSet(scores.length);
+        for(int i=0;i<lists.size();++i) {
+            PostingsList list = lists.get(i);
+            double idf = idfs[i];
+            for(int p=0;p<list.size();++p) {
+                int docID = list.getDocID(p);
+                scores[docID] += (double)list.getFrequency(p) * idf * inverseLengths[docID];
+                matched.set(docID);
+            }
+        }
+        return matched;
+    }
+
+    private PostingsList pageRank(ArrayList<PostingsList> lists, int k) {
+        BitSet matched = new BitSet();
+        for(PostingsList list : lists) {
+            for(int p=0;p<list.size();++p) {
+                matched.set(list.getDocID(p));
+            }
+        }
+        ScoreHeap heap = new ScoreHeap(k);
+        for(int docID=matched.nextSetBit(0);docID>=0;docID=matched.nextSetBit(docID + 1)) {
+            String doc[] = Index.docName(docID).split("/");
             int docId = this.docNamesPageRank.get(doc[doc.length-1]);
-            union.list.get(i).score = ranking.get(docId);
+            heap.offer(docID, ranking.get(docId));
         }
-        union.sortPostingListByScore();
-        return union;
+        return heap.toPostingsList();
     }
 
-    private PostingsList combination(ArrayList<PostingsList> lists) {
+    private PostingsList combination(ArrayList<PostingsList> lists, double[] idfs, int k) {
         // PostingsList results = new PostingsList();
         // double scores[] = new double[index.docNames.size()];
         // double weights[] = computeWeightsQuery(query);
@@ -337,21 +634,12 @@ public class Searcher {
         //
         // results.sortPostingListByScore();
         // return results;
-        PostingsList union = lists.get(0);
-        lists.get(0).computeScore(index.docNames.size(), index.docLengths);
-        for(int i=1;i<lists.size();++i) {
-            for(int j=0;j<lists.get(i).size();++j) {
-                if(union.documentExists(lists.get(i).get(j).docID)) {
-                    union.getEntry(lists.get(i).get(j).docID).score += lists.get(i).get(j).score;
-                } else {
-                    union.add(lists.get(i).get(j));
-                }
-            }
-        }
-        for(int i=0;i<union.list.size();++i) {
-            union.list.get(i).score *= ranking.get(union.list.get(i).docID);
+        double[] scores = new double[index.norms.getInverseLengths().length];
+        BitSet matched = this.tfIdfScores(lists, idfs, scores);
+        ScoreHeap heap = new ScoreHeap(k);
+        for(int docID=matched.nextSetBit(0);docID>=0;docID=matched.nextSetBit(docID + 1)) {
+            heap.offer(docID, scores[docID] * ranking.get(docID));
         }
-        union.sortPostingListByScore();
-        return union;
+        return heap.toPostingsList();
     }
 }
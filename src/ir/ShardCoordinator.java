@@ -0,0 +1,459 @@
+package ir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *  Searches a collection split into shards, each indexed and served by an
+ *  engine of its own (see the -shard and -server options of Engine), and
+ *  merges their results as those of one index.
+ *
+ *  A query is sent to the search servers of all the shards at once. The
+ *  tf-idf and combination rankings take two rounds: the coordinator first
+ *  adds up the number of documents and the document frequencies of the
+ *  terms of the query of every shard (GET /df), then sends them with the
+ *  search, so that each shard scores its documents with the idf of the
+ *  whole collection and the scores of the shards compare. The k best
+ *  results of the shards are then merged by score, and those of boolean
+ *  queries by docID.
+ *
+ *  The docID of the coordinator of document d of shard s of n is d * n + s.
+ *  It must fit in an int, so a shard may hold docIDs up to
+ *  (Integer.MAX_VALUE - (n - 1)) / n, about 2^31 / n: a reply with a larger
+ *  docID is malformed.
+ *  The names of the last MAX_NAMES documents found are kept for docName,
+ *  which covers the results of the last searches. A shard which does not
+ *  answer, or whose answer is malformed, is left out of the results, with
+ *  a warning.
+ */
+public class ShardCoordinator {
+
+    /** Time given to connect to a shard, and to read its answer, in milliseconds. */
+    static final int CONNECT_TIMEOUT = 2000;
+    static final int READ_TIMEOUT = 30000;
+
+    /** Number of names of documents found kept for docName. */
+    static final int MAX_NAMES = 4 * SearchServer.MAX_K;
+
+    /** The host:port addresses of the search servers of the shards. */
+    private final ArrayList<String> addresses;
+
+    private final ExecutorService pool;
+
+    /** The largest docID of a shard whose docID of the coordinator fits in an int. */
+    private final int maxShardDocID;
+
+    /** The names of the documents found last, by docID of the coordinator, in LRU order. */
+    private final LinkedHashMap<Integer,String> names = new LinkedHashMap<Integer,String>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Integer,String> eldest) {
+            return this.size() > MAX_NAMES;
+        }
+    };
+
+    /** The answer of a shard to a search. */
+    private static class Results {
+        int totalHits;
+        int[] docIDs;
+        double[] scores;
+        String[] names;
+    }
+
+    /** Reads the answer of a shard, and throws IllegalArgumentException if it is malformed. */
+    private interface Reader<T> {
+        T read(Map<String,Object> reply);
+    }
+
+    public ShardCoordinator(List<String> addresses) {
+        this.addresses = new ArrayList<String>(addresses);
+        int n = Math.max(this.addresses.size(), 1);
+        this.maxShardDocID = (Integer.MAX_VALUE - (n - 1)) / n;
+        this.pool = Executors.newFixedThreadPool(Math.max(this.addresses.size(), 1), new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "shard-" + this.count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /** Number of shards. */
+    public int size() {
+        return this.addresses.size();
+    }
+
+    /** The name of a document found by a recent search, or null. */
+    public String docName(int docID) {
+        synchronized(this.names) {
+            return this.names.get(docID);
+        }
+    }
+
+    /** Searches the shards for the k best results of a query, or the k first ones of a boolean query. */
+    public PostingsList search(Query query, QueryType queryType, RankingType rankingType, int k) {
+        k = Math.min(k, SearchServer.MAX_K);
+        StringBuilder queryString = new StringBuilder();
+        for(int i=0;i<query.size();++i) {
+            if(i > 0) {
+                queryString.append(' ');
+            }
+            queryString.append(query.queryterm.get(i).term);
+        }
+        String parameters = "q=" + encode(queryString.toString()) + "&type=" + queryType.name()
+            + "&ranking=" + rankingType.name() + "&k=" + k;
+        if(queryType == QueryType.RANKED_QUERY && rankingType != RankingType.PAGERANK) {
+            CollectionStatistics statistics = new CollectionStatistics();
+            for(CollectionStatistics shard : this.gather("/df?q=" + encode(queryString.toString()), STATISTICS)) {
+                if(shard != null) {
+                    statistics.add(shard);
+                }
+            }
+            parameters += "&n=" + statistics.documents + "&df=" + encode(statistics.encode());
+        }
+        List<Results> replies = this.gather("/search?" + parameters, this.resultsReader);
+
+        int n = this.addresses.size();
+        int totalHits = 0;
+        PostingsList results;
+        if(queryType == QueryType.RANKED_QUERY) {
+            ScoreHeap heap = new ScoreHeap(k);
+            for(int s=0;s<n;++s) {
+                Results shard = replies.get(s);
+                if(shard != null) {
+                    totalHits += shard.totalHits;
+                    for(int i=0;i<shard.docIDs.length;++i) {
+                        heap.offer(globalDocID(shard.docIDs[i], s), shard.scores[i]);
+                    }
+                }
+            }
+            results = heap.toPostingsList();
+        } else {
+            // The k first documents of each shard hold the k first of the collection.
+            int[] docIDs = new int[0];
+            int size = 0;
+            for(int s=0;s<n;++s) {
+                Results shard = replies.get(s);
+                if(shard != null) {
+                    totalHits += shard.totalHits;
+                    for(int i=0;i<shard.docIDs.length;++i) {
+                        if(size == docIDs.length) {
+                            docIDs = Arrays.copyOf(docIDs, Math.max(2 * size, 16));
+                        }
+                        docIDs[size++] = globalDocID(shard.docIDs[i], s);
+                    }
+                }
+            }
+            Arrays.sort(docIDs, 0, size);
+            size = Math.min(size, k);
+            results = new PostingsList(Arrays.copyOf(docIDs, Math.max(size, 1)), new int[Math.max(size, 1) + 1], new int[1], size);
+        }
+        results.setTotalHits(totalHits);
+        // Only the names of the results returned are kept.
+        HashMap<Integer,String> found = new HashMap<Integer,String>();
+        for(int s=0;s<n;++s) {
+            Results shard = replies.get(s);
+            for(int i=0;shard!=null && i<shard.docIDs.length;++i) {
+                found.put(globalDocID(shard.docIDs[i], s), shard.names[i]);
+            }
+        }
+        synchronized(this.names) {
+            for(int i=0;i<results.size();++i) {
+                String name = found.get(results.getDocID(i));
+                if(name != null) {
+                    this.names.put(results.getDocID(i), name);
+                }
+            }
+        }
+        return results;
+    }
+
+    private static final Reader<CollectionStatistics> STATISTICS = new Reader<CollectionStatistics>() {
+        public CollectionStatistics read(Map<String,Object> reply) {
+            CollectionStatistics statistics = new CollectionStatistics();
+            statistics.documents = (int)number(reply, "documents");
+            Map<String,Object> df = object(reply.get("df"));
+            for(String term : df.keySet()) {
+                statistics.df.put(term, (int)number(df, term));
+            }
+            return statistics;
+        }
+    };
+
+    /** The docID of the coordinator of document docID of shard s, which read checked. */
+    private int globalDocID(int docID, int s) {
+        return Math.addExact(Math.multiplyExact(docID, this.addresses.size()), s);
+    }
+
+    private final Reader<Results> resultsReader = new Reader<Results>() {
+        public Results read(Map<String,Object> reply) {
+            Results results = new Results();
+            results.totalHits = (int)number(reply, "totalHits");
+            if(!(reply.get("results") instanceof List)) {
+                throw new IllegalArgumentException("Expected a list of results");
+            }
+            List<?> list = (List<?>)reply.get("results");
+            results.docIDs = new int[list.size()];
+            results.scores = new double[list.size()];
+            results.names = new String[list.size()];
+            for(int i=0;i<list.size();++i) {
+                Map<String,Object> result = object(list.get(i));
+                double docID = number(result, "docID");
+                if(docID < 0 || docID > maxShardDocID || docID != Math.floor(docID)) {
+                    throw new IllegalArgumentException("docID " + docID + " out of the range of " + addresses.size() + " shards");
+                }
+                results.docIDs[i] = (int)docID;
+                results.scores[i] = number(result, "score");
+                if(result.get("name") instanceof String) {
+                    results.names[i] = (String)result.get("name");
+                }
+            }
+            return results;
+        }
+    };
+
+    /**
+     *  Sends a request to every shard at once, and returns their answers
+     *  read by reader in the order of the shards, null for a shard which
+     *  failed or answered a malformed reply.
+     */
+    private <T> List<T> gather(final String request, final Reader<T> reader) {
+        ArrayList<Future<T>> futures = new ArrayList<Future<T>>();
+        for(final String address : this.addresses) {
+            futures.add(this.pool.submit(new Callable<T>() {
+                public T call() throws IOException {
+                    return reader.read(object(new Json(get("http://" + address + request)).parse()));
+                }
+            }));
+        }
+        ArrayList<T> replies = new ArrayList<T>();
+        for(int s=0;s<futures.size();++s) {
+            try {
+                replies.add(futures.get(s).get());
+            } catch(ExecutionException e) {
+                System.err.println("Warning: shard " + this.addresses.get(s) + " is left out: " + e.getCause());
+                replies.add(null);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                replies.add(null);
+            }
+        }
+        return replies;
+    }
+
+    /** The body of the answer to a GET request. */
+    private static String get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        try {
+            int status = connection.getResponseCode();
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if(in != null) {
+                try {
+                    byte[] buffer = new byte[8192];
+                    int n;
+                    while((n = in.read(buffer)) > 0) {
+                        body.write(buffer, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            String text = new String(body.toByteArray(), StandardCharsets.UTF_8);
+            if(status != 200) {
+                throw new IOException("HTTP " + status + " " + text);
+            }
+            return text;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** A number field of a JSON object. */
+    private static double number(Map<String,Object> object, String key) {
+        if(!(object.get(key) instanceof Number)) {
+            throw new IllegalArgumentException("Expected a number " + key);
+        }
+        return ((Number)object.get(key)).doubleValue();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String,Object> object(Object value) {
+        if(!(value instanceof Map)) {
+            throw new IllegalArgumentException("Expected a JSON object");
+        }
+        return (Map<String,Object>)value;
+    }
+
+    /**
+     *  Parses the JSON of the search servers: objects as maps, arrays as
+     *  lists, numbers as doubles.
+     */
+    static class Json {
+        private final String text;
+        private int position = 0;
+
+        Json(String text) {
+            this.text = text;
+        }
+
+        Object parse() {
+            Object value = this.value();
+            this.skipSpaces();
+            if(this.position < this.text.length()) {
+                throw this.error();
+            }
+            return value;
+        }
+
+        private Object value() {
+            this.skipSpaces();
+            if(this.position >= this.text.length()) {
+                throw this.error();
+            }
+            char c = this.text.charAt(this.position);
+            if(c == '{') {
+                HashMap<String,Object> object = new HashMap<String,Object>();
+                this.position++;
+                this.skipSpaces();
+                if(this.peek() == '}') {
+                    this.position++;
+                    return object;
+                }
+                while(true) {
+                    this.skipSpaces();
+                    String key = this.string();
+                    this.skipSpaces();
+                    this.expect(':');
+                    object.put(key, this.value());
+                    this.skipSpaces();
+                    if(this.peek() == ',') {
+                        this.position++;
+                    } else {
+                        this.expect('}');
+                        return object;
+                    }
+                }
+            } else if(c == '[') {
+                ArrayList<Object> array = new ArrayList<Object>();
+                this.position++;
+                this.skipSpaces();
+                if(this.peek() == ']') {
+                    this.position++;
+                    return array;
+                }
+                while(true) {
+                    array.add(this.value());
+                    this.skipSpaces();
+                    if(this.peek() == ',') {
+                        this.position++;
+                    } else {
+                        this.expect(']');
+                        return array;
+                    }
+                }
+            } else if(c == '"') {
+                return this.string();
+            } else if(this.text.startsWith("null", this.position)) {
+                this.position += 4;
+                return null;
+            } else if(this.text.startsWith("true", this.position)) {
+                this.position += 4;
+                return Boolean.TRUE;
+            } else if(this.text.startsWith("false", this.position)) {
+                this.position += 5;
+                return Boolean.FALSE;
+            }
+            int start = this.position;
+            while(this.position < this.text.length() && "+-0123456789.eE".indexOf(this.text.charAt(this.position)) >= 0) {
+                this.position++;
+            }
+            try {
+                return Double.parseDouble(this.text.substring(start, this.position));
+            } catch(NumberFormatException e) {
+                throw this.error();
+            }
+        }
+
+        private String string() {
+            this.expect('"');
+            StringBuilder s = new StringBuilder();
+            while(this.position < this.text.length()) {
+                char c = this.text.charAt(this.position++);
+                if(c == '"') {
+                    return s.toString();
+                } else if(c == '\\' && this.position < this.text.length()) {
+                    char escaped = this.text.charAt(this.position++);
+                    if(escaped == 'u' && this.position + 4 <= this.text.length()) {
+                        s.append((char)Integer.parseInt(this.text.substring(this.position, this.position + 4), 16));
+                        this.position += 4;
+                    } else if(escaped == 'n') {
+                        s.append('\n');
+                    } else if(escaped == 't') {
+                        s.append('\t');
+                    } else if(escaped == 'r') {
+                        s.append('\r');
+                    } else if(escaped == 'b') {
+                        s.append('\b');
+                    } else if(escaped == 'f') {
+                        s.append('\f');
+                    } else {
+                        s.append(escaped);
+                    }
+                } else {
+                    s.append(c);
+                }
+            }
+            throw this.error();
+        }
+
+        private char peek() {
+            return this.position < this.text.length() ? this.text.charAt(this.position) : 0;
+        }
+
+        private void expect(char c) {
+            if(this.peek() != c) {
+                throw this.error();
+            }
+            this.position++;
+        }
+
+        private void skipSpaces() {
+            while(this.position < this.text.length() && Character.isWhitespace(this.text.charAt(this.position))) {
+                this.position++;
+            }
+        }
+
+        private IllegalArgumentException error() {
+            return new IllegalArgumentException("Malformed JSON at " + this.position);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package ir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ *  A file of encoded postings lists sorted by term, which is only written
+ *  and read sequentially. Any number of runs are merged in one streaming
+ *  pass which holds one list of each run in memory, behind a buffer of
+ *  BUFFER_SIZE bytes.
+ *
+ *  Each list is written as true, its term in modified UTF-8, the length of
+ *  the encoded list and the list (see PostingsCodec). The file ends with
+ *  false. A run is synced to the disk when it is closed, and its CRC32 is
+ *  computed while it is written, for the CommitPoint which refers to it.
+ */
+public class SortedRun {
+
+    /** Size of the buffer of each run read or written. */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    /** Receives postings lists in increasing order of their terms. */
+    public interface Sink {
+        void add(String term, byte[] postings) throws IOException;
+    }
+
+    /** Writes a run. */
+    public static class Writer implements Sink, Closeable {
+        private final FileOutputStream file;
+        private final CRC32 crc = new CRC32();
+        private final DataOutputStream out;
+
+        public Writer(File file) throws IOException {
+            this.file = new FileOutputStream(file);
+            this.out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(this.file, this.crc), BUFFER_SIZE));
+        }
+
+        public void add(String term, byte[] postings) throws IOException {
+            this.out.writeBoolean(true);
+            this.out.writeUTF(term);
+            this.out.writeInt(postings.length);
+            this.out.write(postings);
+        }
+
+        public void close() throws IOException {
+            this.out.writeBoolean(false);
+            this.out.flush();
+            this.file.getFD().sync();
+            this.out.close();
+        }
+
+        /** The CRC32 of the run, once it is closed. */
+        public long checksum() {
+            return this.crc.getValue();
+        }
+    }
+
+    /** Reads a run, one list at a time. */
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+
+        /** The term and the encoded list read by the last call to next. */
+        String term = null;
+        byte[] postings = null;
+
+        public Reader(File file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        }
+
+        /** Reads the next list, and returns false at the end of the run. */
+        public boolean next() throws IOException {
+            if(!this.in.readBoolean()) {
+                this.term = null;
+                this.postings = null;
+                return false;
+            }
+            this.term = this.in.readUTF();
+            this.postings = new byte[this.in.readInt()];
+            this.in.readFully(this.postings);
+            return true;
+        }
+
+        public void close() throws IOException {
+            this.in.close();
+        }
+    }
+
+    /** Writes the lists of an index sorted by term, and returns the checksum of the run. */
+    public static long write(File file, HashMap<String,PostingsList> lists) throws IOException {
+        ArrayList<String> terms = new ArrayList<String>(lists.keySet());
+        Collections.sort(terms);
+        Writer out = new Writer(file);
+        try {
+            for(String term : terms) {
+                out.add(term, PostingsCodec.encode(lists.get(term)));
+            }
+        } finally {
+            out.close();
+        }
+        return out.checksum();
+    }
+
+    /**
+     *  Merges runs into sink in one pass. The lists of a term found in one
+     *  run only are copied as they are, unless deleted holds documents: every
+     *  list is then decoded, and encoded again without the postings of the
+     *  documents of deleted. The lists left empty are dropped.
+     */
+    public static void merge(List<File> runs, Sink sink, BitSet deleted) throws IOException {
+        final ArrayList<Reader> readers = new ArrayList<Reader>();
+        // Lists of the same term come out in the order of the runs.
+        PriorityQueue<Integer> queue = new PriorityQueue<Integer>(Math.max(runs.size(), 1), new Comparator<Integer>() {
+            public int compare(Integer r1, Integer r2) {
+                int c = readers.get(r1).term.compareTo(readers.get(r2).term);
+                return c != 0 ? c : Integer.compare(r1, r2);
+            }
+        });
+        try {
+            for(File run : runs) {
+                Reader reader = new Reader(run);
+                readers.add(reader);
+                if(reader.next()) {
+                    queue.add(readers.size() - 1);
+                }
+            }
+            while(!queue.isEmpty()) {
+                int r = queue.poll();
+                String term = readers.get(r).term;
+                byte[] postings = readers.get(r).postings;
+                boolean filter = deleted != null && !deleted.isEmpty();
+                PostingsList list = null;
+                if(filter) {
+                    list = PostingsCodec.decode(ByteBuffer.wrap(postings));
+                }
+                if(readers.get(r).next()) {
+                    queue.add(r);
+                }
+                while(!queue.isEmpty() && readers.get(queue.peek()).term.equals(term)) {
+                    r = queue.poll();
+                    if(list == null) {
+                        list = PostingsCodec.decode(ByteBuffer.wrap(postings));
+                    }
+                    list.merge(PostingsCodec.decode(ByteBuffer.wrap(readers.get(r).postings)));
+                    if(readers.get(r).next()) {
+                        queue.add(r);
+                    }
+                }
+                if(list != null) {
+                    if(filter) {
+                        list = list.without(deleted);
+                        if(list.size() == 0) {
+                            continue;
+                        }
+                    }
+                    postings = PostingsCodec.encode(list);
+                }
+                sink.add(term, postings);
+            }
+        } finally {
+            for(Reader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+}
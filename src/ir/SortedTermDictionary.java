@@ -0,0 +1,254 @@
+package ir;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  An immutable dictionary of terms sorted in the order of their UTF-8
+ *  bytes, which finds the terms of a prefix or of a range with a binary
+ *  search.
+ *
+ *  The terms are front coded by blocks of BLOCK terms: the first term of a
+ *  block is stored in full, as its length and its bytes, the next ones as
+ *  the length of the prefix they share with the previous term, the length
+ *  of the rest and the rest. A lookup searches the first terms of the
+ *  blocks, then decodes at most one block.
+ *
+ *  The rank of a term is its place in the sorted order. Each term keeps
+ *  the id it was given by the index which built the dictionary.
+ */
+public class SortedTermDictionary {
+
+    /** Number of terms of a block. */
+    static final int BLOCK = 16;
+
+    /** The front coded terms. */
+    private final byte[] data;
+
+    /** Place in data of the first term of each block. */
+    private final int[] blocks;
+
+    /** The id of the term of each rank. */
+    private final int[] ids;
+
+    /** Builds the dictionary of a mapping from terms to ids. */
+    public SortedTermDictionary(Map<String,Integer> terms) {
+        int n = terms.size();
+        byte[][] sorted = new byte[n][];
+        int[] sortedIDs = new int[n];
+        Integer[] order = new Integer[n];
+        int i = 0;
+        for(Map.Entry<String,Integer> entry : terms.entrySet()) {
+            sorted[i] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            sortedIDs[i] = entry.getValue();
+            order[i] = i;
+            i++;
+        }
+        final byte[][] bytes = sorted;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                return compareBytes(bytes[i1], bytes[i1].length, bytes[i2]);
+            }
+        });
+
+        this.ids = new int[n];
+        this.blocks = new int[(n + BLOCK - 1) / BLOCK];
+        byte[] out = new byte[1024];
+        int p = 0;
+        byte[] previous = new byte[0];
+        for(int r=0;r<n;++r) {
+            byte[] term = sorted[order[r]];
+            this.ids[r] = sortedIDs[order[r]];
+            int shared = 0;
+            if(r % BLOCK == 0) {
+                this.blocks[r / BLOCK] = p;
+            } else {
+                while(shared < previous.length && shared < term.length && previous[shared] == term[shared]) {
+                    shared++;
+                }
+            }
+            if(p + 10 + term.length - shared > out.length) {
+                out = Arrays.copyOf(out, Math.max(2 * out.length, p + 10 + term.length));
+            }
+            if(r % BLOCK != 0) {
+                p = PostingsCodec.writeVByte(out, p, shared);
+            }
+            p = PostingsCodec.writeVByte(out, p, term.length - shared);
+            System.arraycopy(term, shared, out, p, term.length - shared);
+            p += term.length - shared;
+            previous = term;
+        }
+        this.data = Arrays.copyOf(out, p);
+    }
+
+    /** Number of terms. */
+    public int size() {
+        return this.ids.length;
+    }
+
+    /** Number of bytes of the front coded terms. */
+    public int dataSize() {
+        return this.data.length;
+    }
+
+    /** The id of the term of a given rank. */
+    public int getTermID(int rank) {
+        return this.ids[rank];
+    }
+
+    /** The term of a given rank. */
+    public String getTerm(int rank) {
+        Cursor cursor = new Cursor(rank / BLOCK);
+        while(cursor.rank < rank) {
+            cursor.next();
+        }
+        return cursor.term();
+    }
+
+    /** The rank of the first term which is not smaller than key. */
+    public int lowerBound(String key) {
+        return this.lowerBound(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private int lowerBound(byte[] key) {
+        if(this.ids.length == 0) {
+            return 0;
+        }
+        // Last block whose first term is smaller than key.
+        int lo = 0;
+        int hi = this.blocks.length - 1;
+        while(lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            Cursor head = new Cursor(mid);
+            if(compareBytes(head.term, head.length, key) < 0) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        Cursor cursor = new Cursor(lo);
+        int end = Math.min((lo + 1) * BLOCK, this.ids.length);
+        while(compareBytes(cursor.term, cursor.length, key) < 0) {
+            if(cursor.rank + 1 == end) {
+                return end;
+            }
+            cursor.next();
+        }
+        return cursor.rank;
+    }
+
+    /**
+     *  The ranks [from, to[ of the terms which start with prefix, as
+     *  {from, to}.
+     */
+    public int[] prefixRange(String prefix) {
+        byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+        int from = this.lowerBound(key);
+        // The smallest key greater than every term starting with prefix.
+        int last = key.length - 1;
+        while(last >= 0 && key[last] == (byte)0xFF) {
+            last--;
+        }
+        if(last < 0) {
+            return new int[] {from, this.ids.length};
+        }
+        byte[] end = Arrays.copyOf(key, last + 1);
+        end[last]++;
+        return new int[] {from, this.lowerBound(end)};
+    }
+
+    /** The ids of the terms of ranks [from, to[. */
+    public int[] getTermIDs(int from, int to) {
+        return Arrays.copyOfRange(this.ids, from, to);
+    }
+
+    /** The terms of ranks [from, to[, decoded in one pass. */
+    public List<String> getTerms(int from, int to) {
+        List<String> terms = new ArrayList<String>(Math.max(to - from, 0));
+        if(from < to) {
+            Cursor cursor = new Cursor(from / BLOCK);
+            while(cursor.rank < from) {
+                cursor.next();
+            }
+            terms.add(cursor.term());
+            while(cursor.rank + 1 < to) {
+                cursor.next();
+                terms.add(cursor.term());
+            }
+        }
+        return terms;
+    }
+
+    /** The terms between from included and to excluded. */
+    public List<String> range(String from, String to) {
+        return this.getTerms(this.lowerBound(from), this.lowerBound(to));
+    }
+
+    /** At most max terms starting with prefix, in sorted order. */
+    public List<String> complete(String prefix, int max) {
+        int[] range = this.prefixRange(prefix);
+        return this.getTerms(range[0], Math.min(range[1], range[0] + max));
+    }
+
+    /** Compares a[0..length[ with b as unsigned bytes. */
+    static int compareBytes(byte[] a, int length, byte[] b) {
+        int n = Math.min(length, b.length);
+        for(int i=0;i<n;++i) {
+            int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if(c != 0) {
+                return c;
+            }
+        }
+        return length - b.length;
+    }
+
+    /** Decodes the terms of the dictionary in order, from the start of a block. */
+    private class Cursor {
+        int rank;
+        int p;
+        byte[] term = new byte[32];
+        int length = 0;
+
+        Cursor(int block) {
+            this.rank = block * BLOCK;
+            this.p = blocks[block];
+            this.read(0);
+        }
+
+        /** Moves to the next term, the blocks follow each other in data. */
+        void next() {
+            this.rank++;
+            this.read(this.rank % BLOCK == 0 ? 0 : this.readVByte());
+        }
+
+        private void read(int shared) {
+            int rest = this.readVByte();
+            if(shared + rest > this.term.length) {
+                this.term = Arrays.copyOf(this.term, Math.max(2 * this.term.length, shared + rest));
+            }
+            System.arraycopy(data, this.p, this.term, shared, rest);
+            this.p += rest;
+            this.length = shared + rest;
+        }
+
+        private int readVByte() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[this.p++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while((b & 0x80) != 0);
+            return value;
+        }
+
+        String term() {
+            return new String(this.term, 0, this.length, StandardCharsets.UTF_8);
+        }
+    }
+}
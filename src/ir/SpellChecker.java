@@ -145,7 +145,7 @@ public class SpellChecker {
                     PostingsList list = index.getPostings(corrections.get(k));
                     int weight = 0;
                     for(int i=0;i<list.size();++i) {
-                        weight += list.list.get(i).positions.size();
+                        weight += list.getFrequency(i);
                     }
                     System.out.println(corrections.get(k) + " : " + Integer.toString(weight));
                     distances.put(corrections.get(k), weight);
@@ -0,0 +1,181 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ *  Measures how many queries per second the searcher answers with 1, 2,
+ *  4, ... threads searching at once, each query holding the read lock of
+ *  the index as in the engine. The queries alternate between tf-idf
+ *  rankings of 4 terms and intersections of 2 terms, on a random
+ *  collection whose term frequencies follow Zipf's law.
+ *
+ *  Usage: java -cp classes ir.ThroughputBenchmark [number of documents] [seconds per run]
+ */
+public class ThroughputBenchmark {
+
+    static final int VOCABULARY = 50000;
+    static final int QUERIES = 1000;
+
+    /**
+     *  Indexes docs random documents of 20 to 320 words, whose terms t0,
+     *  t1, ... follow Zipf's law, and computes the norms of the collection.
+     */
+    static HashedIndex buildCollection(int docs, Random random) {
+        // Cumulative Zipf distribution of the terms.
+        double[] cumulative = new double[VOCABULARY];
+        double sum = 0;
+        for(int t=0;t<VOCABULARY;++t) {
+            sum += 1.0 / (t + 1);
+            cumulative[t] = sum;
+        }
+        HashedIndex index = new HashedIndex();
+        HashMap<Integer,Integer> docLengths = Index.docLengths;
+        for(int d=0;d<docs;++d) {
+            int length = 20 + random.nextInt(300);
+            for(int o=0;o<length;++o) {
+                int t = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                index.insert("t" + (t >= 0 ? t : -t - 1), d, o);
+            }
+            docLengths.put(d, length);
+            Index.docNames.put(d, "d" + d);
+        }
+        index.cleanup();
+        return index;
+    }
+
+    /** What a searching thread does for query q. */
+    private interface Task {
+        void run(int q);
+    }
+
+    /** Number of queries per second answered by threads threads running task for duration nanoseconds. */
+    static double measure(int threads, final long duration, final ReadWriteLock lock, final Task task) throws InterruptedException {
+        final AtomicLong answered = new AtomicLong();
+        final long start = System.nanoTime();
+        Thread[] workers = new Thread[threads];
+        for(int t=0;t<threads;++t) {
+            final int first = t * QUERIES / threads;
+            workers[t] = new Thread() {
+                public void run() {
+                    long count = 0;
+                    for(int q=first;System.nanoTime() - start < duration;q=(q + 1) % QUERIES) {
+                        lock.readLock().lock();
+                        try {
+                            task.run(q);
+                        }
+                        finally {
+                            lock.readLock().unlock();
+                        }
+                        count++;
+                    }
+                    answered.addAndGet(count);
+                }
+            };
+            workers[t].start();
+        }
+        for(Thread worker : workers) {
+            worker.join();
+        }
+        return answered.get() / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     *  Runs the queries with their lists taken from the index, then through
+     *  a PostingsCache large enough for all of them, as in front of an
+     *  index on disk, and measures the cache lookups alone: the cache must
+     *  not cap the number of queries per second as threads are added.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int docs = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        final long duration = (long)((args.length > 1 ? Double.parseDouble(args[1]) : 3) * 1e9);
+        Random random = new Random(0);
+        final HashedIndex index = buildCollection(docs, random);
+
+        final ArrayList<String[]> queries = new ArrayList<String[]>();
+        final ArrayList<double[]> idfs = new ArrayList<double[]>();
+        long bytes = 0;
+        while(queries.size() < QUERIES) {
+            int terms = queries.size() % 2 == 0 ? 4 : 2;
+            String[] query = new String[terms];
+            double[] queryIdfs = new double[terms];
+            for(int i=0;i<terms;) {
+                String term = "t" + (int)Math.pow(VOCABULARY, random.nextDouble());
+                PostingsList list = index.getPostings(term);
+                if(list != null) {
+                    query[i] = term;
+                    queryIdfs[i++] = Index.norms.idf(list.size());
+                    bytes += list.memorySize();
+                }
+            }
+            queries.add(query);
+            idfs.add(queryIdfs);
+        }
+        final double[] weights = {1, 1, 1, 1};
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        final PostingsCache cache = new PostingsCache(2 * bytes);
+
+        Task direct = new Task() {
+            public void run(int q) {
+                search(q, queries.get(q), idfs.get(q), weights, index, null);
+            }
+        };
+        Task cached = new Task() {
+            public void run(int q) {
+                search(q, queries.get(q), idfs.get(q), weights, index, cache);
+            }
+        };
+        Task lookups = new Task() {
+            public void run(int q) {
+                for(String term : queries.get(q)) {
+                    if(cache.get(term) == null) {
+                        cache.put(term, index.getPostings(term));
+                    }
+                }
+            }
+        };
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println(cores + " processors");
+        System.out.println(String.format("%10s %10s %10s %12s %14s", "threads", "qps", "speedup", "cached qps", "lookups/s"));
+        double single = 0;
+        // The first run, on one thread, warms the JIT compiler up and fills the cache, and is not shown.
+        for(int threads=1, run=0;threads<=Math.max(2 * cores, 2);threads*=(run++ == 0 ? 1 : 2)) {
+            double qps = measure(threads, duration, lock, direct);
+            double cachedQps = measure(threads, duration, lock, cached);
+            double lookupsPerSecond = measure(threads, duration, lock, lookups);
+            if(run == 0) {
+                continue;
+            }
+            if(threads == 1) {
+                single = qps;
+            }
+            System.out.println(String.format("%10d %10.0f %10.2f %12.0f %14.0f", threads, qps, qps / single, cachedQps, lookupsPerSecond));
+        }
+        System.out.println("Cache: " + cache);
+    }
+
+    /** Answers query q, a tf-idf ranking of 4 terms or an intersection of 2, with its lists read through cache if it is not null. */
+    static PostingsList search(int q, String[] terms, double[] idfs, double[] weights, HashedIndex index, PostingsCache cache) {
+        ArrayList<PostingsList> lists = new ArrayList<PostingsList>(terms.length);
+        for(String term : terms) {
+            PostingsList list = cache != null ? cache.get(term) : null;
+            if(list == null) {
+                list = index.getPostings(term);
+                if(cache != null) {
+                    cache.put(term, list);
+                }
+            }
+            lists.add(list);
+        }
+        if(lists.size() == 4) {
+            return Searcher.maxScore(lists, idfs, weights, Index.norms, SearchGUI.MAX_RESULTS);
+        }
+        return Searcher.intersect(lists);
+    }
+}